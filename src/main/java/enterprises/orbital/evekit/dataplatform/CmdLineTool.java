@@ -40,9 +40,12 @@ public class CmdLineTool {
             "       ekdptool source -s <sid> enable\n" +
             "       ekdptool source -s <sid> disable\n" +
             "       ekdptool source -s <sid> show\n" +
+            "       ekdptool source -s <sid> decommission [<chunk size>]\n" +
             "       ekdptool tracker -s <sid> create <type>\n" +
             "       ekdptool tracker -s <sid> [-d <dtype>] unfinished\n" +
             "       ekdptool tracker -s <sid> [-d <dtype>] last\n" +
+            "       ekdptool tracker -s <sid> rebuild\n" +
+            "       ekdptool tracker -s <sid> prune\n" +
             "       ekdptool tracker -s <sid> -t <tid> show\n" +
             "       ekdptool tracker -s <sid> -t <tid> start [<timestamp>]\n" +
             "       ekdptool tracker -s <sid> -t <tid> end [<timestamp>]\n" +
@@ -124,7 +127,10 @@ public class CmdLineTool {
       finish(String.valueOf(newSource.getSid()), false, 0);
     } else if (argv[i].equals("list")) {
       i++;
-      for (DataSource next : DataSource.getAll()) {
+      // Summaries only, descriptions are only loaded by "show"
+      List<DataSourceSummary> sources = DataSource.getAllSummaries();
+      if (sources == null) finish("Error listing sources", true, 1);
+      for (DataSourceSummary next : sources) {
         outTarget.println(next.toString());
       }
     } else {
@@ -174,6 +180,16 @@ public class CmdLineTool {
           finish(source.toString(), false, 0);
           break;
 
+        case "decommission":
+          i++;
+          int chunkSize = hasRequiredLength(1, i, argv) ? Integer.valueOf(argv[i++]) : 500;
+          if (chunkSize < 1) finish("Chunk size must be at least 1", true, 1);
+          if (!DataSource.decommission(sourceID, chunkSize,
+                                       (deleted, remaining) -> outTarget.println(
+                                           "Deleted " + deleted + " trackers, " + remaining + " remaining")))
+            finish("Decommission incomplete, rerun to resume", true, 1);
+          break;
+
         default:
           usage();
       }
@@ -200,8 +216,7 @@ public class CmdLineTool {
         i++;
         // Always return an existing unfinished tracker if it exists.  This avoids creating multiple
         // unfinished trackers, which will break the unfinished query.
-        DataSourceUpdateTracker newTracker = DataSourceUpdateTracker.getUnfinishedTracker(source, typeInfo);
-        if (newTracker == null) newTracker = DataSourceUpdateTracker.createTracker(source, typeInfo);
+        DataSourceUpdateTracker newTracker = DataSourceUpdateTracker.getOrCreateUnfinished(source, typeInfo);
         if (newTracker == null) finish("Internal error creating new tracker", true, 1);
         finish(String.valueOf(newTracker.getTid()), false, 0);
       } else if (argv[i].equals("-d")) {
@@ -237,6 +252,14 @@ public class CmdLineTool {
           }
         } else
           finish("Error checking for unfinished trackers", true, 1);
+      } else if (argv[i].equals("rebuild")) {
+        i++;
+        List<DataSourceUpdateTracker> last = DataSourceUpdateTracker.rebuildLatestFinishedTrackers(source);
+        if (last == null) finish("Error rebuilding latest trackers", true, 1);
+      } else if (argv[i].equals("prune")) {
+        i++;
+        long pruned = new DataSourceTrackerRetention().prune(source);
+        outTarget.println("Pruned " + pruned + " trackers");
       } else if (argv[i].equals("-t")) {
         i++;
         if (!hasRequiredLength(1, i, argv)) usage();
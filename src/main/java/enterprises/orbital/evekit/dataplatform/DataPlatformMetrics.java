@@ -0,0 +1,35 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes data platform metrics as MBeans on the platform MBean server.  All beans are registered
+ * under the "enterprises.orbital.evekit.dataplatform" domain with the given type name.
+ */
+public class DataPlatformMetrics {
+  private static final Logger log = Logger.getLogger(DataPlatformMetrics.class.getName());
+  public static final String DOMAIN = "enterprises.orbital.evekit.dataplatform";
+
+  /**
+   * Register an MBean, replacing any bean already registered with the same type.  Failures are logged
+   * but otherwise ignored since metrics should never prevent the platform from running.
+   *
+   * @param type  the type name of the bean.
+   * @param mbean the bean to register.
+   */
+  public static void register(String type, Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(DOMAIN + ":type=" + type);
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+      server.registerMBean(mbean, name);
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Failed to register metrics bean: " + type, e);
+    }
+  }
+
+}
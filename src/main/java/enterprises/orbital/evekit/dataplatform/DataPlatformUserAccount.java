@@ -12,19 +12,26 @@ import javax.persistence.*;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Data platform user accounts.
+ * Data platform user accounts.  Accounts and lookups by uid are held in the second level cache, see
+ * the cache settings in persistence.xml.
  */
 @Entity
+@Cacheable
 @Table(
     name = "evekit_dp_users")
 @NamedQueries({
     @NamedQuery(
         name = "DataPlatformUserAccount.findByUid",
-        query = "SELECT c FROM DataPlatformUserAccount c where c.uid = :uid"),
+        query = "SELECT c FROM DataPlatformUserAccount c where c.uid = :uid",
+        hints = {
+            @QueryHint(name = "org.hibernate.cacheable", value = "true"),
+            @QueryHint(name = "org.hibernate.cacheRegion", value = "dp-login-queries")
+        }),
     @NamedQuery(
         name = "DataPlatformUserAccount.allAccounts",
         query = "SELECT c FROM DataPlatformUserAccount c"),
@@ -36,6 +43,13 @@ import java.util.logging.Logger;
 public class DataPlatformUserAccount implements UserAccount, PersistentPropertyKey<String> {
   private static final Logger log = Logger.getLogger(DataPlatformUserAccount.class.getName());
 
+  // Minimum time (milliseconds) between writes of a user or source sign on time.  Every write invalidates the
+  // cached login queries, so sign ons this close to the recorded time are not written.  Zero records every sign on.
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SIGN_ON_INTERVAL = "enterprises.orbital.user.signOnInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_SIGN_ON_INTERVAL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+
   @Id
   @GeneratedValue(
       strategy = GenerationType.SEQUENCE,
@@ -190,12 +204,14 @@ public class DataPlatformUserAccount implements UserAccount, PersistentPropertyK
   }
 
   /**
-   * Update the "last" time for this user to the current time.
+   * Update the "last" time for this user to the current time.  Nothing is written if the recorded time is
+   * within PROP_SIGN_ON_INTERVAL of the current time.
    *
    * @param user the UserAccount to update.
-   * @return returns the newly persisted User.
+   * @return returns the newly persisted User, or the input User if no update was needed.
    */
   public static DataPlatformUserAccount touch(final DataPlatformUserAccount user) {
+    if (signOnRecorded(user.last)) return user;
     try {
       return DataPlatformProvider.getFactory()
                                  .runTransaction(() -> {
@@ -213,6 +229,12 @@ public class DataPlatformUserAccount implements UserAccount, PersistentPropertyK
     return null;
   }
 
+  // True if a sign on now is close enough to the recorded sign on time that it need not be written
+  static boolean signOnRecorded(long last) {
+    return last >= 0 && OrbitalProperties.getCurrentTime() - last <
+        OrbitalProperties.getLongGlobalProperty(PROP_SIGN_ON_INTERVAL, DEF_SIGN_ON_INTERVAL);
+  }
+
   /**
    * Return list of all user accounts.
    *
@@ -17,8 +17,11 @@ import java.util.logging.Logger;
 
 /**
  * User authentication sources. There may be multiple entries associated with a single UserAccount.
+ * Sources and the login path lookups are held in the second level cache, see the cache settings in
+ * persistence.xml.
  */
 @Entity
+@Cacheable
 @Table(
     name = "evekit_dp_auth_source",
     indexes = {
@@ -34,7 +37,11 @@ import java.util.logging.Logger;
 @NamedQueries({
     @NamedQuery(
         name = "DataPlatformUserAuthSource.findByAcctAndSource",
-        query = "SELECT c FROM DataPlatformUserAuthSource c where c.account = :account and c.source = :source"),
+        query = "SELECT c FROM DataPlatformUserAuthSource c where c.account = :account and c.source = :source",
+        hints = {
+            @QueryHint(name = "org.hibernate.cacheable", value = "true"),
+            @QueryHint(name = "org.hibernate.cacheRegion", value = "dp-login-queries")
+        }),
     @NamedQuery(
         name = "DataPlatformUserAuthSource.allSourcesByAcct",
         query = "SELECT c FROM DataPlatformUserAuthSource c where c.account = :account order by c.last desc"),
@@ -43,7 +50,11 @@ import java.util.logging.Logger;
         query = "SELECT c FROM DataPlatformUserAuthSource c"),
     @NamedQuery(
         name = "DataPlatformUserAuthSource.allBySourceAndScreenname",
-        query = "SELECT c FROM DataPlatformUserAuthSource c where c.source = :source and c.screenName = :screenname"),
+        query = "SELECT c FROM DataPlatformUserAuthSource c where c.source = :source and c.screenName = :screenname",
+        hints = {
+            @QueryHint(name = "org.hibernate.cacheable", value = "true"),
+            @QueryHint(name = "org.hibernate.cacheRegion", value = "dp-login-queries")
+        }),
 })
 @ApiModel(
     description = "Authentication source for a user")
@@ -344,6 +355,8 @@ public class DataPlatformUserAuthSource implements UserAuthSource {
 
   public static DataPlatformUserAuthSource touch(
       final DataPlatformUserAuthSource source) {
+    // Sign on times are only kept to within PROP_SIGN_ON_INTERVAL, see DataPlatformUserAccount
+    if (DataPlatformUserAccount.signOnRecorded(source.getLast())) return source;
     try {
       return DataPlatformProvider.getFactory()
                                  .runTransaction(() -> {
@@ -12,11 +12,13 @@ import javax.persistence.Index;
 import javax.persistence.Lob;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
-import javax.persistence.NoResultException;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.TypedQuery;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,7 +41,17 @@ import java.util.logging.Logger;
         query = "SELECT c FROM DataSource c where c.sid = :sid"),
     @NamedQuery(
         name = "DataSource.getAll",
-        query = "SELECT c FROM DataSource c")
+        query = "SELECT c FROM DataSource c"),
+    @NamedQuery(
+        name = "DataSource.getAllSummaries",
+        query = "SELECT new enterprises.orbital.evekit.dataplatform.DataSourceSummary(c.sid, c.name, c.startDate, c.endDate, c.enabled) " +
+            "FROM DataSource c order by c.sid"),
+    @NamedQuery(
+        name = "DataSource.getDescription",
+        query = "SELECT c.description FROM DataSource c where c.sid = :sid"),
+    @NamedQuery(
+        name = "DataSource.getAllDescriptions",
+        query = "SELECT c.sid, c.description FROM DataSource c"),
 })
 @ApiModel(description = "EveKit Data Source Definition")
 public class DataSource {
@@ -156,29 +168,87 @@ public class DataSource {
         '}';
   }
 
+  // Detached source built from a summary and separately loaded description
+  static DataSource fromSummary(DataSourceSummary summary, String description) {
+    DataSource source = new DataSource();
+    source.sid = summary.getSid();
+    source.name = summary.getName();
+    source.description = description;
+    source.startDate = summary.getStartDate();
+    source.endDate = summary.getEndDate();
+    source.enabled = summary.isEnabled();
+    return source;
+  }
+
   public static DataSource createSource() {
     try {
-      return DataPlatformProvider.getFactory().runTransaction(() -> {
+      DataSource created = DataPlatformProvider.getFactory().runTransaction(() -> {
           DataSource result = new DataSource();
-          return DataPlatformProvider.getFactory().getEntityManager().merge(result);
+          result = DataPlatformProvider.getFactory().getEntityManager().merge(result);
+          DataSourceVersion.increment();
+          return result;
         });
+      DataSourceRegistry.invalidate();
+      return created;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
     return null;
   }
 
+  /**
+   * Retrieve a data source.  Sources are served from DataSourceRegistry, so the result is a detached copy.
+   *
+   * @param sid the ID of the source to retrieve.
+   * @return the source, or null if it does not exist or an error occurred.
+   */
   public static DataSource get(final long sid) {
+    return DataSourceRegistry.get(sid);
+  }
+
+  /**
+   * Retrieve all data sources.  Sources are served from DataSourceRegistry, so the results are detached copies.
+   * This loads every description.  Use getAllSummaries when descriptions are not needed.
+   *
+   * @return all sources, or null on error.
+   */
+  public static List<DataSource> getAll() {
+    return DataSourceRegistry.getAll();
+  }
+
+  /**
+   * Retrieve a summary of every data source.  Summaries do not include descriptions.
+   *
+   * @return summaries of all sources ordered by source ID, or null on error.
+   */
+  public static List<DataSourceSummary> getAllSummaries() {
+    return DataSourceRegistry.getAllSummaries();
+  }
+
+  // Load summaries of all sources from the database for DataSourceRegistry
+  static List<DataSourceSummary> loadSummaries() {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
-          TypedQuery<DataSource> getter = DataPlatformProvider.getFactory().getEntityManager()
-              .createNamedQuery("DataSource.get", DataSource.class);
+          TypedQuery<DataSourceSummary> getter = DataPlatformProvider.getFactory().getEntityManager()
+              .createNamedQuery("DataSource.getAllSummaries", DataSourceSummary.class);
+          return getter.getResultList();
+        });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  // Load the description of a single source for DataSourceRegistry.  Returns null on error, or an empty
+  // Optional if the source has no description or does not exist.
+  static Optional<String> loadDescription(final long sid) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+          TypedQuery<String> getter = DataPlatformProvider.getFactory().getEntityManager()
+              .createNamedQuery("DataSource.getDescription", String.class);
           getter.setParameter("sid", sid);
-          try {
-            return getter.getSingleResult();
-          } catch (NoResultException e) {
-            return null;
-          }
+          List<String> result = getter.getResultList();
+          return result.isEmpty() ? Optional.<String>empty() : Optional.ofNullable(result.get(0));
         });
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -186,12 +256,17 @@ public class DataSource {
     return null;
   }
 
-  public static List<DataSource> getAll() {
+  // Load the descriptions of all sources for DataSourceRegistry.  Returns null on error.
+  static Map<Long, Optional<String>> loadDescriptions() {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
-          TypedQuery<DataSource> getter = DataPlatformProvider.getFactory().getEntityManager()
-              .createNamedQuery("DataSource.getAll", DataSource.class);
-          return getter.getResultList();
+          TypedQuery<Object[]> getter = DataPlatformProvider.getFactory().getEntityManager()
+              .createNamedQuery("DataSource.getAllDescriptions", Object[].class);
+          Map<Long, Optional<String>> result = new HashMap<>();
+          for (Object[] next : getter.getResultList()) {
+            result.put((Long) next[0], Optional.ofNullable((String) next[1]));
+          }
+          return result;
         });
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -202,10 +277,13 @@ public class DataSource {
   public static boolean deleteSource(final long sid) {
     try {
       DataPlatformProvider.getFactory().runTransaction(() -> {
-          DataSource source = get(sid);
-          if (source != null)
+          DataSource source = DataPlatformProvider.getFactory().getEntityManager().find(DataSource.class, sid);
+          if (source != null) {
             DataPlatformProvider.getFactory().getEntityManager().remove(source);
+            DataSourceVersion.increment();
+          }
         });
+      DataSourceRegistry.invalidate();
       return true;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -213,11 +291,82 @@ public class DataSource {
     return false;
   }
 
+  /**
+   * Progress callback for decommission.
+   */
+  public interface DecommissionProgress {
+    /**
+     * Called after each committed chunk of tracker deletes.
+     *
+     * @param deleted   trackers deleted so far by this call.
+     * @param remaining trackers left when this call started, less those deleted since.
+     */
+    void progress(long deleted, long remaining);
+  }
+
+  /**
+   * Remove a data source and all of its tracker history.  The source is first disabled so that schedulers and
+   * collectors stop creating trackers for it.  Trackers (along with derived latest tracker and rollup rows) are
+   * then deleted in chunks of at most chunkSize, each in its own transaction, so that no single transaction
+   * holds locks over the entire history.  The source row is removed last.
+   * <p>
+   * Every step may be repeated, so a decommission which fails or is interrupted part way can be resumed by
+   * calling this method again.  Until then the source remains disabled with partial history.
+   *
+   * @param sid       the ID of the source to remove.
+   * @param chunkSize maximum number of trackers to delete per transaction.
+   * @param progress  optional progress callback, may be null.
+   * @return true if the source no longer exists, false if an error occurred.
+   * @throws IllegalArgumentException if chunkSize is less than 1.
+   */
+  public static boolean decommission(final long sid, final int chunkSize, final DecommissionProgress progress) {
+    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1: " + chunkSize);
+    DataSource source;
+    try {
+      source = DataPlatformProvider.getFactory().runTransaction(() -> {
+          DataSource result = DataPlatformProvider.getFactory().getEntityManager().find(DataSource.class, sid);
+          if (result != null && result.isEnabled()) {
+            result.setEnabled(false);
+            DataSourceVersion.increment();
+          }
+          return result;
+        });
+      DataSourceRegistry.invalidate();
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+      return false;
+    }
+    // Already removed
+    if (source == null) return true;
+    long remaining = DataSourceUpdateTracker.countTrackers(source);
+    if (remaining < 0) return false;
+    long deleted = 0;
+    int count;
+    do {
+      count = DataSourceUpdateTracker.deleteHistory(source, chunkSize);
+      if (count < 0) {
+        log.warning("Decommission of source " + sid + " failed after " + deleted + " trackers, retry to resume");
+        return false;
+      }
+      deleted += count;
+      remaining = Math.max(0, remaining - count);
+      if (progress != null) progress.progress(deleted, remaining);
+    } while (count == chunkSize && !Thread.currentThread()
+                                          .isInterrupted());
+    if (count == chunkSize) return false;
+    // Fails if a tracker was created after the last chunk, in which case the caller should retry
+    return deleteSource(sid);
+  }
+
   public static DataSource update(final DataSource source) {
     try {
-      return DataPlatformProvider.getFactory().runTransaction(() -> {
-          return DataPlatformProvider.getFactory().getEntityManager().merge(source);
+      DataSource updated = DataPlatformProvider.getFactory().runTransaction(() -> {
+          DataSource result = DataPlatformProvider.getFactory().getEntityManager().merge(source);
+          DataSourceVersion.increment();
+          return result;
         });
+      DataSourceRegistry.invalidate();
+      return updated;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
       return null;
@@ -0,0 +1,156 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of all data sources.  Summaries of all sources are loaded at once into an immutable
+ * snapshot which serves DataSource.get, DataSource.getAll and DataSource.getAllSummaries without a
+ * transaction.  Descriptions may be large so they are only loaded when a full source is first requested,
+ * then kept with the snapshot.  Callers always receive copies so the snapshot can not be modified.
+ * <p>
+ * Changes made through DataSource in this process replace the snapshot immediately.  Changes made by
+ * other processes are detected by comparing the DataSourceVersion counter with the version of the
+ * snapshot, at most once every PROP_REGISTRY_CHECK_INTERVAL milliseconds.
+ */
+public class DataSourceRegistry {
+
+  // Minimum time (milliseconds) between checks for changes made by other processes
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_REGISTRY_CHECK_INTERVAL = "enterprises.orbital.sourceRegistry.checkInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_REGISTRY_CHECK_INTERVAL = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+
+  private static final class Snapshot {
+    private final long version;
+    private final Map<Long, DataSourceSummary> bySid;
+    private final List<DataSourceSummary> all;
+    // Descriptions loaded so far, keyed by source ID
+    private final Map<Long, Optional<String>> descriptions = new ConcurrentHashMap<>();
+    private volatile long checkedAt;
+
+    private Snapshot(long version, List<DataSourceSummary> sources, long checkedAt) {
+      Map<Long, DataSourceSummary> index = new HashMap<>();
+      for (DataSourceSummary next : sources) index.put(next.getSid(), next);
+      this.version = version;
+      this.bySid = Collections.unmodifiableMap(index);
+      this.all = Collections.unmodifiableList(new ArrayList<>(sources));
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private static volatile Snapshot snapshot;
+  // Bumped by every invalidate.  A reload which overlaps an invalidate may have read the old sources, so its
+  // result is not installed.
+  private static final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Retrieve a copy of a data source.
+   *
+   * @param sid the ID of the source to retrieve.
+   * @return a copy of the source, or null if it does not exist or the registry could not be loaded.
+   */
+  public static DataSource get(long sid) {
+    Snapshot current = current();
+    if (current == null) return null;
+    DataSourceSummary summary = current.bySid.get(sid);
+    if (summary == null) return null;
+    Optional<String> description = current.descriptions.computeIfAbsent(sid, DataSource::loadDescription);
+    return description == null ? null : DataSource.fromSummary(summary, description.orElse(null));
+  }
+
+  /**
+   * Retrieve copies of all data sources.
+   *
+   * @return copies of all sources, or null if the registry could not be loaded.
+   */
+  public static List<DataSource> getAll() {
+    Snapshot current = current();
+    if (current == null) return null;
+    if (current.descriptions.size() < current.all.size()) {
+      // Load all missing descriptions in one query
+      Map<Long, Optional<String>> loaded = DataSource.loadDescriptions();
+      if (loaded == null) return null;
+      for (Map.Entry<Long, Optional<String>> next : loaded.entrySet())
+        current.descriptions.putIfAbsent(next.getKey(), next.getValue());
+    }
+    List<DataSource> result = new ArrayList<>(current.all.size());
+    for (DataSourceSummary next : current.all) {
+      Optional<String> description = current.descriptions.getOrDefault(next.getSid(), Optional.empty());
+      result.add(DataSource.fromSummary(next, description.orElse(null)));
+    }
+    return result;
+  }
+
+  /**
+   * Retrieve summaries of all data sources.  Summaries are immutable and do not include descriptions.
+   *
+   * @return summaries of all sources ordered by source ID, or null if the registry could not be loaded.
+   */
+  public static List<DataSourceSummary> getAllSummaries() {
+    Snapshot current = current();
+    return current == null ? null : current.all;
+  }
+
+  /**
+   * @return the DataSourceVersion the current snapshot was loaded at, or -1 if nothing is loaded.
+   */
+  public static long getVersion() {
+    Snapshot current = snapshot;
+    return current == null ? -1 : current.version;
+  }
+
+  /**
+   * Discard the current snapshot.  The next read reloads all sources.
+   */
+  public static void invalidate() {
+    generation.incrementAndGet();
+    snapshot = null;
+  }
+
+  private static Snapshot current() {
+    Snapshot current = snapshot;
+    long now = OrbitalProperties.getCurrentTime();
+    if (current != null) {
+      long interval = OrbitalProperties.getLongGlobalProperty(PROP_REGISTRY_CHECK_INTERVAL, DEF_REGISTRY_CHECK_INTERVAL);
+      if (now - current.checkedAt < interval) return current;
+      // Time to check for changes made elsewhere.  If the check itself fails keep serving what we have.
+      long version = DataSourceVersion.get();
+      if (version == -1 || version == current.version) {
+        current.checkedAt = now;
+        return current;
+      }
+    }
+    return reload(current);
+  }
+
+  private static synchronized Snapshot reload(Snapshot stale) {
+    // Another thread may have reloaded while we waited
+    Snapshot current = snapshot;
+    if (current != null && current != stale) return current;
+    // Read the version first so a change racing with the load is detected by the next check
+    long loadedAt = generation.get();
+    long version = DataSourceVersion.get();
+    List<DataSourceSummary> sources = DataSource.loadSummaries();
+    if (version == -1 || sources == null) return stale;
+    current = new Snapshot(version, sources, OrbitalProperties.getCurrentTime());
+    // If a change in this process was committed while we loaded, serve this caller what we loaded but leave
+    // the snapshot empty so the next read loads the change.  The generation is checked again after installing
+    // because invalidate may run between the check and the install.  Only reload installs snapshots, so
+    // clearing here never discards a newer one.
+    if (generation.get() != loadedAt) return current;
+    snapshot = current;
+    if (generation.get() != loadedAt) snapshot = null;
+    return current;
+  }
+
+}
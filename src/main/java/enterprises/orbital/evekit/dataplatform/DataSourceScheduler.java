@@ -0,0 +1,298 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules updates of enabled data sources.  Each registered (source, type) pair has an update interval.
+ * The first update is due one interval after the latest finished tracker for the pair, and each later
+ * update is due one interval after the previous update completes.  Due updates are queued in due order
+ * and passed to a DataSourceUpdateHandler running on a caller supplied Executor.
+ * <p>
+ * Dispatch is fair across sources: at most perSourceLimit updates of a single source run at once.
+ * Further due updates of that source wait in its own queue, so a source with many types can not
+ * occupy the whole executor while other sources are due.  Updates of disabled sources are skipped
+ * and checked again one interval later.
+ * <p>
+ * A stopped scheduler may be started again.  Every registered pair is then rescheduled from its latest
+ * finished tracker.
+ */
+public class DataSourceScheduler {
+  private static final Logger log = Logger.getLogger(DataSourceScheduler.class.getName());
+
+  // Default update interval (milliseconds).  May be overridden per source and type by setting
+  // PROP_SCHEDULER_INTERVAL + "." + sid + "." + type.
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SCHEDULER_INTERVAL = "enterprises.orbital.scheduler.interval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_SCHEDULER_INTERVAL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  // Maximum number of concurrent updates for a single source
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SCHEDULER_SOURCE_LIMIT = "enterprises.orbital.scheduler.perSourceLimit";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SCHEDULER_SOURCE_LIMIT = 1;
+  // Delay (milliseconds) before retrying an update rejected by the executor
+  private static final long REJECT_DELAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+
+  private static final class Key {
+    private final long sid;
+    private final String dtype;
+
+    private Key(long sid, String dtype) {
+      this.sid = sid;
+      this.dtype = dtype;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return sid == key.sid && dtype.equals(key.dtype);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(sid) + dtype.hashCode();
+    }
+  }
+
+  private static final class Registration {
+    private final DataSource source;
+    private final String dtype;
+    private final long interval;
+
+    private Registration(DataSource source, String dtype, long interval) {
+      this.source = source;
+      this.dtype = dtype;
+      this.interval = interval;
+    }
+  }
+
+  // Queued update.  Only the entry currently recorded in "scheduled" for a key is live, older entries
+  // are skipped when they reach the head of the queue.
+  private static final class Job implements Delayed {
+    private final Key key;
+    private final long dueAt;
+
+    private Job(Key key, long dueAt) {
+      this.key = key;
+      this.dueAt = dueAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueAt - OrbitalProperties.getCurrentTime(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(dueAt, ((Job) o).dueAt);
+    }
+  }
+
+  // Due updates of a single source.  Guarded by its own monitor.
+  private static final class Lane {
+    private final Queue<Job> waiting = new ArrayDeque<>();
+    private int running;
+  }
+
+  private final DataSourceUpdateHandler handler;
+  private final Executor executor;
+  private final int perSourceLimit;
+  private final Map<Key, Registration> registrations = new ConcurrentHashMap<>();
+  private final Map<Key, Job> scheduled = new ConcurrentHashMap<>();
+  private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+  private final DelayQueue<Job> queue = new DelayQueue<>();
+  // Replaced on every start, guarded by this
+  private Thread dispatcher;
+  private volatile boolean running;
+
+  public DataSourceScheduler(DataSourceUpdateHandler handler, Executor executor) {
+    this(handler, executor,
+         OrbitalProperties.getIntGlobalProperty(PROP_SCHEDULER_SOURCE_LIMIT, DEF_SCHEDULER_SOURCE_LIMIT));
+  }
+
+  public DataSourceScheduler(DataSourceUpdateHandler handler, Executor executor, int perSourceLimit) {
+    this.handler = handler;
+    this.executor = executor;
+    this.perSourceLimit = perSourceLimit;
+  }
+
+  /**
+   * Register a (source, type) pair with the interval configured by PROP_SCHEDULER_INTERVAL.
+   *
+   * @param source the data source to update.
+   * @param dtype  the update type.
+   */
+  public void register(DataSource source, String dtype) {
+    long def = OrbitalProperties.getLongGlobalProperty(PROP_SCHEDULER_INTERVAL, DEF_SCHEDULER_INTERVAL);
+    register(source, dtype,
+             OrbitalProperties.getLongGlobalProperty(PROP_SCHEDULER_INTERVAL + "." + source.getSid() + "." + dtype, def));
+  }
+
+  /**
+   * Register (or re-register) a (source, type) pair.  If the scheduler is running the pair is scheduled
+   * immediately based on its latest finished tracker.
+   *
+   * @param source   the data source to update.
+   * @param dtype    the update type.
+   * @param interval update interval in milliseconds.
+   */
+  public void register(DataSource source, String dtype, long interval) {
+    Key key = new Key(source.getSid(), dtype);
+    registrations.put(key, new Registration(source, dtype, interval));
+    if (running) {
+      DataSourceUpdateTracker latest = DataSourceUpdateTracker.getLatestFinishedTracker(source, dtype);
+      queueAt(key, latest == null ? OrbitalProperties.getCurrentTime() : latest.getTrackerEnd() + interval);
+    }
+  }
+
+  /**
+   * Stop scheduling a (source, type) pair.  An update already in progress is allowed to complete.
+   *
+   * @param source the data source.
+   * @param dtype  the update type.
+   */
+  public void unregister(DataSource source, String dtype) {
+    Key key = new Key(source.getSid(), dtype);
+    registrations.remove(key);
+    scheduled.remove(key);
+  }
+
+  /**
+   * Compute the next due time of every registered pair and start dispatching updates.  Does nothing if the
+   * scheduler is already running.
+   */
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    // Group registrations by source so we need a single latest tracker query per source
+    Map<Long, List<Registration>> bySource = new HashMap<>();
+    for (Registration next : registrations.values()) {
+      bySource.computeIfAbsent(next.source.getSid(), k -> new ArrayList<>())
+              .add(next);
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    for (List<Registration> next : bySource.values()) {
+      Map<String, Long> lastEnd = new HashMap<>();
+      List<DataSourceUpdateTracker> latest = DataSourceUpdateTracker.getAllLatestFinishedTrackers(next.get(0).source);
+      if (latest != null) {
+        for (DataSourceUpdateTracker tracker : latest) lastEnd.put(tracker.getDataSourceType(), tracker.getTrackerEnd());
+      }
+      for (Registration reg : next) {
+        Long end = lastEnd.get(reg.dtype);
+        queueAt(new Key(reg.source.getSid(), reg.dtype), end == null ? now : end + reg.interval);
+      }
+    }
+    dispatcher = new DaemonThreadFactory("source-scheduler").newThread(this::dispatch);
+    dispatcher.start();
+  }
+
+  /**
+   * Stop dispatching updates.  Updates already in progress are allowed to complete.
+   */
+  public synchronized void stop() {
+    if (!running) return;
+    running = false;
+    dispatcher.interrupt();
+    queue.clear();
+    scheduled.clear();
+  }
+
+  private void queueAt(Key key, long dueAt) {
+    if (!running || !registrations.containsKey(key)) return;
+    Job job = new Job(key, dueAt);
+    scheduled.put(key, job);
+    queue.put(job);
+  }
+
+  private void dispatch() {
+    while (running) {
+      try {
+        Job next = queue.take();
+        if (scheduled.get(next.key) != next) continue;
+        Lane lane = lanes.computeIfAbsent(next.key.sid, k -> new Lane());
+        synchronized (lane) {
+          if (lane.running >= perSourceLimit) {
+            lane.waiting.add(next);
+            continue;
+          }
+          lane.running++;
+        }
+        submit(lane, next);
+      } catch (InterruptedException e) {
+        // We've been told to exit, so exit
+        return;
+      } catch (Throwable e) {
+        // Catch everything but log it
+        log.log(Level.WARNING, "caught error in scheduler dispatch loop (ignoring)", e);
+      }
+    }
+  }
+
+  // Hand a job to the executor.  The caller must already have counted the job as running in its lane.  If
+  // the executor rejects a job, its slot passes to the next waiting job of the same source until a job is
+  // accepted or none are left.
+  private void submit(Lane lane, Job job) {
+    while (job != null) {
+      final Job next = job;
+      try {
+        executor.execute(() -> run(lane, next));
+        return;
+      } catch (RejectedExecutionException e) {
+        log.fine("Executor rejected update, retrying later");
+        queueAt(next.key, OrbitalProperties.getCurrentTime() + REJECT_DELAY);
+        job = release(lane);
+      }
+    }
+  }
+
+  private void run(Lane lane, Job job) {
+    try {
+      if (!running || !scheduled.remove(job.key, job)) return;
+      Registration reg = registrations.get(job.key);
+      if (reg == null) return;
+      try {
+        DataSource source = DataSource.get(reg.source.getSid());
+        if (source != null && source.isEnabled()) handler.update(source, reg.dtype);
+      } catch (Throwable e) {
+        log.log(Level.WARNING, "Update failed for source " + reg.source.getSid() + " type " + reg.dtype, e);
+      }
+      queueAt(job.key, OrbitalProperties.getCurrentTime() + reg.interval);
+    } finally {
+      complete(lane);
+    }
+  }
+
+  // Release a running slot and start the next waiting job of the same source, if any
+  private void complete(Lane lane) {
+    Job next = release(lane);
+    if (next != null) submit(lane, next);
+  }
+
+  // Release a running slot.  Returns the next waiting job of the same source, which takes over the slot,
+  // or null if none are waiting.
+  private Job release(Lane lane) {
+    synchronized (lane) {
+      Job next = lane.waiting.poll();
+      if (next == null) lane.running--;
+      return next;
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModel;
+
+/**
+ * Summary of a DataSource without its description.  Summaries are produced by a constructor expression
+ * query so listing sources never reads description LOBs.
+ */
+@ApiModel(description = "EveKit Data Source Summary")
+public class DataSourceSummary {
+  @JsonProperty("sid")
+  private final long sid;
+  @JsonProperty("name")
+  private final String name;
+  @JsonProperty("startDate")
+  private final long startDate;
+  @JsonProperty("endDate")
+  private final long endDate;
+  @JsonProperty("enabled")
+  private final boolean enabled;
+
+  public DataSourceSummary(long sid, String name, long startDate, long endDate, boolean enabled) {
+    this.sid = sid;
+    this.name = name;
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.enabled = enabled;
+  }
+
+  public long getSid() {
+    return sid;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getStartDate() {
+    return startDate;
+  }
+
+  public long getEndDate() {
+    return endDate;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    DataSourceSummary that = (DataSourceSummary) o;
+
+    if (sid != that.sid) return false;
+    if (startDate != that.startDate) return false;
+    if (endDate != that.endDate) return false;
+    if (enabled != that.enabled) return false;
+    return name != null ? name.equals(that.name) : that.name == null;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (sid ^ (sid >>> 32));
+    result = 31 * result + (name != null ? name.hashCode() : 0);
+    result = 31 * result + (int) (startDate ^ (startDate >>> 32));
+    result = 31 * result + (int) (endDate ^ (endDate >>> 32));
+    result = 31 * result + (enabled ? 1 : 0);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "DataSourceSummary{" +
+        "sid=" + sid +
+        ", name='" + name + '\'' +
+        ", startDate=" + startDate +
+        ", endDate=" + endDate +
+        ", enabled=" + enabled +
+        '}';
+  }
+
+}
@@ -0,0 +1,157 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically prunes update tracker history.  Finished trackers older than the retention period of
+ * their data source are rolled up into DataSourceUpdateTrackerRollup rows and then deleted in small
+ * batches, each in its own transaction, so live collectors are never blocked for long.
+ * <p>
+ * The retention period defaults to PROP_TRACKER_RETENTION and may be overridden for a single source by
+ * setting PROP_TRACKER_RETENTION + "." + sid.  A retention period of zero or less keeps history forever.
+ */
+public class DataSourceTrackerRetention {
+  private static final Logger log = Logger.getLogger(DataSourceTrackerRetention.class.getName());
+
+  // Default tracker retention period (milliseconds).  Zero or less disables pruning.
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_RETENTION = "enterprises.orbital.tracker.retention";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TRACKER_RETENTION = 0;
+  // Interval (milliseconds) between pruning passes
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_PRUNE_INTERVAL = "enterprises.orbital.tracker.pruneInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TRACKER_PRUNE_INTERVAL = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+  // Number of trackers removed per transaction
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_PRUNE_BATCH = "enterprises.orbital.tracker.pruneBatch";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TRACKER_PRUNE_BATCH = 500;
+
+  private final int batchSize;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new DaemonThreadFactory("tracker-retention"));
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong totalPruned = new AtomicLong();
+  private final AtomicLong lastPruned = new AtomicLong();
+  private final AtomicLong lastDuration = new AtomicLong();
+
+  public DataSourceTrackerRetention() {
+    this(OrbitalProperties.getIntGlobalProperty(PROP_TRACKER_PRUNE_BATCH, DEF_TRACKER_PRUNE_BATCH));
+  }
+
+  public DataSourceTrackerRetention(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Start pruning every PROP_TRACKER_PRUNE_INTERVAL milliseconds.
+   */
+  public void start() {
+    long interval = OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_PRUNE_INTERVAL, DEF_TRACKER_PRUNE_INTERVAL);
+    executor.scheduleWithFixedDelay(this::prune, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Run a single pruning pass over all data sources.  Normally invoked on the retention schedule.
+   */
+  public void prune() {
+    try {
+      long start = System.nanoTime();
+      long pruned = 0;
+      // Pruning only needs source IDs, so skip loading descriptions
+      List<DataSourceSummary> sources = DataSource.getAllSummaries();
+      if (sources != null) {
+        for (DataSourceSummary next : sources) {
+          if (Thread.currentThread()
+                    .isInterrupted()) break;
+          pruned += prune(DataSource.fromSummary(next, null));
+        }
+      }
+      runs.incrementAndGet();
+      totalPruned.addAndGet(pruned);
+      lastPruned.set(pruned);
+      lastDuration.set(TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+    } catch (Throwable e) {
+      // Catch everything but log it so future passes still run
+      log.log(Level.WARNING, "caught error in tracker pruning (ignoring)", e);
+    }
+  }
+
+  /**
+   * Prune tracker history for a single data source according to its retention period.
+   *
+   * @param source the data source to prune.
+   * @return number of trackers removed.
+   */
+  public long prune(DataSource source) {
+    long retention = getRetention(source);
+    if (retention <= 0) return 0;
+    long cutoff = OrbitalProperties.getCurrentTime() - retention;
+    long pruned = 0;
+    int count;
+    do {
+      count = DataSourceUpdateTracker.pruneHistory(source, cutoff, batchSize);
+      if (count < 0) {
+        log.warning("Pruning failed for source " + source.getSid() + ", will retry next pass");
+        break;
+      }
+      pruned += count;
+    } while (count == batchSize && !Thread.currentThread()
+                                          .isInterrupted());
+    if (pruned > 0) log.fine("Pruned " + pruned + " trackers for source " + source.getSid());
+    return pruned;
+  }
+
+  /**
+   * @param source a data source.
+   * @return the tracker retention period (milliseconds) for the given source.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static long getRetention(DataSource source) {
+    long def = OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_RETENTION, DEF_TRACKER_RETENTION);
+    return OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_RETENTION + "." + source.getSid(), def);
+  }
+
+  /**
+   * @return number of completed pruning passes.
+   */
+  public long getRuns() {
+    return runs.get();
+  }
+
+  /**
+   * @return number of trackers removed over all passes.
+   */
+  public long getTotalPruned() {
+    return totalPruned.get();
+  }
+
+  /**
+   * @return number of trackers removed by the most recent pass.
+   */
+  public long getLastPruned() {
+    return lastPruned.get();
+  }
+
+  /**
+   * @return duration (milliseconds) of the most recent pass.
+   */
+  public long getLastDuration() {
+    return lastDuration.get();
+  }
+
+}
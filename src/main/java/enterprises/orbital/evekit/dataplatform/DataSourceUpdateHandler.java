@@ -0,0 +1,18 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Performs a single update of a data source type on behalf of DataSourceScheduler.  Implementations
+ * normally create or claim a tracker, collect data, then finish the tracker.
+ */
+public interface DataSourceUpdateHandler {
+
+  /**
+   * Update a data source type.
+   *
+   * @param source the data source to update.
+   * @param dtype  the update type.
+   * @throws Exception if the update fails.  The update is rescheduled as normal.
+   */
+  void update(DataSource source, String dtype) throws Exception;
+
+}
@@ -1,33 +1,48 @@
 package enterprises.orbital.evekit.dataplatform;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.db.ConnectionFactory.RunInTransaction;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.JoinColumn;
+import javax.persistence.LockModeType;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.NoResultException;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.TypedQuery;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Generic update tracker for evekit data sources.  Each tracker has a unique ID, a data source ID,
  * an source-specific "update type" ID, a start datetime, an end datetime, and a status.  Each data source
- * may create as many open (i.e. started but not finished) trackers as it deems necessary.  This
- * table simply keeps a history of updates.
+ * may create as many open (i.e. started but not finished) trackers as it deems necessary, but at most one
+ * per update type.  This is enforced by a unique guard column which is only set while a tracker is open.
+ * This table simply keeps a history of updates.
  */
 @Entity
 @Table(
@@ -46,7 +61,27 @@ import java.util.logging.Logger;
             columnList = "tid, sid, dataSourceType, trackerEnd"),
         @Index(
             name = "dataSourceTypeIndex",
-            columnList = "dataSourceType")
+            columnList = "dataSourceType"),
+        // Serves getUnfinished, getLatestFinished, getAllLatestFinished, and getAllTypes
+        @Index(
+            name = "sourceTypeEndIndex",
+            columnList = "sid, dataSourceType, trackerEnd"),
+        // Serves getAllUnfinished
+        @Index(
+            name = "sourceEndIndex",
+            columnList = "sid, trackerEnd"),
+        // Serves getStale
+        @Index(
+            name = "endStartIndex",
+            columnList = "trackerEnd, trackerStart"),
+        // Serves getClaimable
+        @Index(
+            name = "endDueIndex",
+            columnList = "trackerEnd, dueTime"),
+        @Index(
+            name = "openGuardIndex",
+            columnList = "openGuard",
+            unique = true)
     })
 @NamedQueries({
     @NamedQuery(
@@ -61,6 +96,49 @@ import java.util.logging.Logger;
     @NamedQuery(
         name = "DataSourceUpdateTracker.getLatestFinished",
         query = "SELECT c FROM DataSourceUpdateTracker c where c.source = :source and c.dataSourceType = :dtype and c.trackerEnd <> -1 order by c.trackerEnd desc"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.getAllLatestFinished",
+        query = "SELECT c FROM DataSourceUpdateTracker c where c.source = :source and c.trackerEnd <> -1 and c.trackerEnd = " +
+            "(SELECT max(d.trackerEnd) FROM DataSourceUpdateTracker d where d.source = :source and d.dataSourceType = c.dataSourceType and d.trackerEnd <> -1) " +
+            "order by c.dataSourceType, c.tid desc"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.findByIDs",
+        query = "SELECT c FROM DataSourceUpdateTracker c where c.tid in :tids"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.getStale",
+        query = "SELECT c.tid FROM DataSourceUpdateTracker c where c.trackerEnd = -1 and c.trackerStart <> -1 and c.trackerStart < :cutoff " +
+            "and (c.leaseExpiry is null or c.leaseExpiry < :cutoff) order by c.trackerStart"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.getClaimable",
+        query = "SELECT c.tid FROM DataSourceUpdateTracker c where c.trackerEnd = -1 and c.dueTime <= :now and c.leaseExpiry < :now " +
+            "order by c.dueTime, c.tid"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.claimLease",
+        query = "UPDATE DataSourceUpdateTracker c set c.leaseOwner = :owner, c.leaseExpiry = :expiry " +
+            "where c.tid = :tid and c.trackerEnd = -1 and c.leaseExpiry < :now"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.renewLease",
+        query = "UPDATE DataSourceUpdateTracker c set c.leaseExpiry = :expiry where c.tid = :tid and c.leaseOwner = :owner and c.trackerEnd = -1"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.releaseLease",
+        query = "UPDATE DataSourceUpdateTracker c set c.leaseOwner = null, c.leaseExpiry = -1 where c.tid = :tid and c.leaseOwner = :owner"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.releaseLeases",
+        query = "UPDATE DataSourceUpdateTracker c set c.leaseOwner = null, c.leaseExpiry = -1 where c.tid in :tids and c.leaseOwner is not null"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.getPrunable",
+        query = "SELECT c FROM DataSourceUpdateTracker c where c.source = :source and c.trackerEnd <> -1 and c.trackerEnd < :cutoff " +
+            "and c.tid not in (SELECT l.tracker.tid FROM DataSourceUpdateTrackerLatest l where l.source = :source) " +
+            "order by c.trackerEnd"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.getIDsBySource",
+        query = "SELECT c.tid FROM DataSourceUpdateTracker c where c.source = :source order by c.tid"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.countBySource",
+        query = "SELECT count(c) FROM DataSourceUpdateTracker c where c.source = :source"),
+    @NamedQuery(
+        name = "DataSourceUpdateTracker.deleteByIDs",
+        query = "DELETE FROM DataSourceUpdateTracker c where c.tid in :tids"),
     @NamedQuery(
         name = "DataSourceUpdateTracker.getAllTypes",
         query = "SELECT DISTINCT c.dataSourceType FROM DataSourceUpdateTracker c where c.source = :source"),
@@ -69,6 +147,18 @@ import java.util.logging.Logger;
 public class DataSourceUpdateTracker {
   private static final Logger log = Logger.getLogger(DataSourceUpdateTracker.class.getName());
 
+  // Number of trackers written between flushes by the batch methods.  Matches hibernate.jdbc.batch_size.
+  static final int BATCH_SIZE = 50;
+  // Number of claimable trackers claimNext tries before giving up
+  private static final int CLAIM_CANDIDATES = 20;
+  // Attempts made by writes which may conflict with concurrent writes, see runWrite
+  private static final int WRITE_ATTEMPTS = 3;
+
+  // Optional write-behind buffer for progress updates, see queueUpdate
+  private static volatile TrackerUpdateWriter updateWriter;
+  // Lifecycle event listeners, see addListener
+  private static final TrackerEventDispatcher events = new TrackerEventDispatcher();
+
   // Status of an update
   public enum UpdateStatus {
     NOT_STARTED, // this update has not started yet
@@ -120,6 +210,28 @@ public class DataSourceUpdateTracker {
       value = "Tracker detail message")
   @JsonProperty("trackerDetail")
   private   String       trackerDetail;
+  // Set to "sid:type" while this tracker is open and null once finished.  The unique index on this column
+  // guarantees at most one open tracker per source and type.
+  @JsonIgnore
+  @Column(length = 300)
+  private   String       openGuard;
+  // Lease held by a collector node working on this tracker.  Lease columns are only changed by the lease
+  // queries below, never by merging a tracker, so a stale copy of a tracker can not clobber a lease.
+  @ApiModelProperty(
+      value = "Owner of the current lease on this tracker, if any")
+  @JsonProperty("leaseOwner")
+  @Column(updatable = false)
+  private   String       leaseOwner;
+  @ApiModelProperty(
+      value = "Lease expiry time (milliseconds UTC), -1 if never leased")
+  @JsonProperty("leaseExpiry")
+  @Column(updatable = false)
+  private   long         leaseExpiry = -1;
+  // Time from which this tracker may be claimed.  Claims go to the earliest due tracker first.
+  @ApiModelProperty(
+      value = "Time (milliseconds UTC) from which this tracker may be claimed")
+  @JsonProperty("dueTime")
+  private   long         dueTime;
 
   public long getTid() {
     return tid;
@@ -149,6 +261,18 @@ public class DataSourceUpdateTracker {
     return trackerDetail;
   }
 
+  public String getLeaseOwner() {
+    return leaseOwner;
+  }
+
+  public long getLeaseExpiry() {
+    return leaseExpiry;
+  }
+
+  public long getDueTime() {
+    return dueTime;
+  }
+
   public void setTrackerStart(long trackerStart) {
     this.trackerStart = trackerStart;
   }
@@ -165,6 +289,33 @@ public class DataSourceUpdateTracker {
     this.trackerDetail = trackerDetail;
   }
 
+  public void setDueTime(long dueTime) {
+    this.dueTime = dueTime;
+  }
+
+  @PrePersist
+  @PreUpdate
+  private void updateOpenGuard() {
+    openGuard = trackerEnd == -1 ? source.getSid() + ":" + dataSourceType : null;
+  }
+
+  // Detached copy of this tracker
+  DataSourceUpdateTracker copy() {
+    DataSourceUpdateTracker copy = new DataSourceUpdateTracker();
+    copy.tid = tid;
+    copy.source = source;
+    copy.trackerStart = trackerStart;
+    copy.trackerEnd = trackerEnd;
+    copy.dataSourceType = dataSourceType;
+    copy.trackerStatus = trackerStatus;
+    copy.trackerDetail = trackerDetail;
+    copy.openGuard = openGuard;
+    copy.leaseOwner = leaseOwner;
+    copy.leaseExpiry = leaseExpiry;
+    copy.dueTime = dueTime;
+    return copy;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -204,34 +355,128 @@ public class DataSourceUpdateTracker {
         ", dataSourceType='" + dataSourceType + '\'' +
         ", trackerStatus=" + trackerStatus +
         ", trackerDetail='" + trackerDetail + '\'' +
+        ", leaseOwner='" + leaseOwner + '\'' +
+        ", leaseExpiry=" + leaseExpiry +
+        ", dueTime=" + dueTime +
         '}';
   }
 
   public static DataSourceUpdateTracker createTracker(final DataSource source, final String dtype) {
+    final List<TrackerEvent> raised = new ArrayList<>();
     try {
-      return DataPlatformProvider.getFactory().runTransaction(() -> {
+      DataSourceUpdateTracker result = DataPlatformProvider.getFactory().runTransaction(() -> {
+        raised.clear();
         DataSourceUpdateTracker tracker = new DataSourceUpdateTracker();
         tracker.source = source;
         tracker.dataSourceType = dtype;
         tracker.trackerStatus = UpdateStatus.NOT_STARTED;
-        return DataPlatformProvider.getFactory().getEntityManager().merge(tracker);
+        tracker.dueTime = OrbitalProperties.getCurrentTime();
+        tracker = DataPlatformProvider.getFactory().getEntityManager().merge(tracker);
+        raise(raised, TrackerEvent.Type.CREATED, tracker);
+        return tracker;
       });
+      events.fire(raised);
+      return result;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
     return null;
   }
 
+  /**
+   * Install a write-behind buffer for queueUpdate.  Any previously installed writer is flushed.
+   *
+   * @param writer the writer to install, or null to make queueUpdate write synchronously.
+   */
+  public static void setUpdateWriter(TrackerUpdateWriter writer) {
+    TrackerUpdateWriter previous = updateWriter;
+    updateWriter = writer;
+    if (previous != null && previous != writer) previous.flush();
+  }
+
+  /**
+   * Save progress on a tracker.  If a write-behind writer is installed the update is queued and coalesced
+   * with other queued updates to the same tracker, otherwise this is the same as updateTracker.  Updates
+   * which set an end time are always written immediately.
+   *
+   * @param tracker the tracker to save.
+   */
+  public static void queueUpdate(final DataSourceUpdateTracker tracker) {
+    TrackerUpdateWriter writer = updateWriter;
+    if (writer == null || tracker.getTrackerEnd() != -1)
+      updateTracker(tracker);
+    else
+      writer.submit(tracker);
+  }
+
+  // Write any queued update for a tracker so it can not land after a direct write
+  private static void flushQueued(long tid) {
+    TrackerUpdateWriter writer = updateWriter;
+    if (writer != null) writer.flush(tid);
+  }
+
+  /**
+   * Register a listener for tracker lifecycle events.  Events are raised after the transaction which made
+   * the change returns and are delivered asynchronously.  Each listener has a bounded queue of undelivered
+   * events (see TrackerEventDispatcher.PROP_TRACKER_EVENT_QUEUE).  Events which arrive when the queue is
+   * full are dropped for that listener so that a slow listener never delays writers.
+   *
+   * @param listener the listener to register.
+   * @param sid      only deliver events for this source ID, or null for all sources.
+   * @param dtype    only deliver events for this update type, or null for all types.
+   * @param types    the event types to deliver.
+   */
+  public static void addListener(TrackerEventListener listener, Long sid, String dtype, Set<TrackerEvent.Type> types) {
+    events.addListener(listener, sid, dtype, types);
+  }
+
+  /**
+   * Remove every registration of a listener.
+   *
+   * @param listener the listener to remove.
+   */
+  public static void removeListener(TrackerEventListener listener) {
+    events.removeListener(listener);
+  }
+
+  /**
+   * @return number of events dropped because a listener's queue was full.
+   */
+  public static long getDroppedEvents() {
+    return events.getDropped();
+  }
+
+  // Record an event to raise once the current transaction returns
+  private static void raise(List<TrackerEvent> raised, TrackerEvent.Type type, DataSourceUpdateTracker tracker) {
+    if (events.hasListeners()) raised.add(new TrackerEvent(type, tracker.copy(), OrbitalProperties.getCurrentTime()));
+  }
+
+  // Record events for the start and end times a tracker gained in an update
+  private static void raiseTransitions(List<TrackerEvent> raised, long oldStart, long oldEnd,
+                                       DataSourceUpdateTracker tracker) {
+    if (oldStart == -1 && tracker.trackerStart != -1) raise(raised, TrackerEvent.Type.STARTED, tracker);
+    if (oldEnd == -1 && tracker.trackerEnd != -1) raise(raised, TrackerEvent.Type.FINISHED, tracker);
+  }
+
   public static DataSourceUpdateTracker finishTracker(final DataSourceUpdateTracker tracker,
                                                       final UpdateStatus status,
                                                       final String msg) {
+    flushQueued(tracker.getTid());
+    final List<TrackerEvent> raised = new ArrayList<>();
     try {
-      return DataPlatformProvider.getFactory().runTransaction(() -> {
+      DataSourceUpdateTracker finished = runWrite(() -> {
+        raised.clear();
         tracker.setTrackerEnd(OrbitalProperties.getCurrentTime());
         tracker.setTrackerStatus(status);
         tracker.setTrackerDetail(msg);
-        return DataPlatformProvider.getFactory().getEntityManager().merge(tracker);
+        DataSourceUpdateTracker result = DataPlatformProvider.getFactory().getEntityManager().merge(tracker);
+        DataSourceUpdateTrackerLatest.record(result);
+        releaseFinished(Collections.singletonList(result));
+        raise(raised, TrackerEvent.Type.FINISHED, result);
+        return result;
       });
+      events.fire(raised);
+      return finished;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
@@ -239,9 +484,329 @@ public class DataSourceUpdateTracker {
   }
 
   public static DataSourceUpdateTracker updateTracker(final DataSourceUpdateTracker tracker) {
+    flushQueued(tracker.getTid());
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      DataSourceUpdateTracker updated = runWrite(() -> {
+        raised.clear();
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        // Capture the stored state so we know which lifecycle events this update raises.  The merge
+        // below would load the same row anyway.
+        DataSourceUpdateTracker existing = em.find(DataSourceUpdateTracker.class, tracker.getTid());
+        long oldStart = existing == null ? -1 : existing.trackerStart;
+        long oldEnd = existing == null ? -1 : existing.trackerEnd;
+        DataSourceUpdateTracker result = em.merge(tracker);
+        if (oldEnd != -1 && result.trackerEnd == -1)
+          DataSourceUpdateTrackerLatest.forget(result);
+        else
+          DataSourceUpdateTrackerLatest.record(result);
+        releaseFinished(Collections.singletonList(result));
+        raiseTransitions(raised, oldStart, oldEnd, result);
+        return result;
+      });
+      events.fire(raised);
+      return updated;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Retrieve the open tracker for a source and type, creating one if none exists.  This is safe to call
+   * concurrently: when two callers race to create a tracker, the loser's insert violates the open tracker
+   * guard and it retries, finding the winner's tracker.
+   *
+   * @param source the data source which owns the tracker.
+   * @param dtype  the update type of the tracker.
+   * @return the open tracker for this source and type, or null on error.
+   */
+  public static DataSourceUpdateTracker getOrCreateUnfinished(final DataSource source, final String dtype) {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    for (int attempt = 0; attempt < 3; attempt++) {
+      try {
+        DataSourceUpdateTracker result = DataPlatformProvider.getFactory().runTransaction(() -> {
+          raised.clear();
+          TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+              "DataSourceUpdateTracker.getUnfinished", DataSourceUpdateTracker.class);
+          getter.setParameter("source", source);
+          getter.setParameter("dtype", dtype);
+          try {
+            return getter.getSingleResult();
+          } catch (NoResultException e) {
+            // Fall through
+          }
+          DataSourceUpdateTracker tracker = new DataSourceUpdateTracker();
+          tracker.source = source;
+          tracker.dataSourceType = dtype;
+          tracker.trackerStatus = UpdateStatus.NOT_STARTED;
+          tracker.dueTime = OrbitalProperties.getCurrentTime();
+          EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+          em.persist(tracker);
+          // Flush now so a guard violation surfaces inside this attempt
+          em.flush();
+          raise(raised, TrackerEvent.Type.CREATED, tracker);
+          return tracker;
+        });
+        events.fire(raised);
+        return result;
+      } catch (Exception e) {
+        log.log(Level.FINE, "lost race creating tracker, retrying", e);
+      }
+    }
+    log.severe("Failed to get or create unfinished tracker for source " + source.getSid() + " type " + dtype);
+    return null;
+  }
+
+  /**
+   * Create a tracker for each of the given types in a single transaction.
+   *
+   * @param source the data source which owns the new trackers.
+   * @param dtypes the update type of each new tracker.
+   * @return the new trackers in the same order as dtypes, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> createTrackers(final DataSource source, final Collection<String> dtypes) {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      List<DataSourceUpdateTracker> created = DataPlatformProvider.getFactory().runTransaction(() -> {
+        raised.clear();
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        long now = OrbitalProperties.getCurrentTime();
+        List<DataSourceUpdateTracker> results = new ArrayList<>(dtypes.size());
+        for (String dtype : dtypes) {
+          DataSourceUpdateTracker tracker = new DataSourceUpdateTracker();
+          tracker.source = source;
+          tracker.dataSourceType = dtype;
+          tracker.trackerStatus = UpdateStatus.NOT_STARTED;
+          tracker.dueTime = now;
+          em.persist(tracker);
+          results.add(tracker);
+          raise(raised, TrackerEvent.Type.CREATED, tracker);
+          if (results.size() % BATCH_SIZE == 0) em.flush();
+        }
+        return results;
+      });
+      events.fire(raised);
+      return created;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Set the start time of a set of trackers to the current time in a single transaction.
+   *
+   * @param tids IDs of the trackers to start.  Unknown IDs are ignored.
+   * @return the updated trackers, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> startTrackers(final Collection<Long> tids) {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      List<DataSourceUpdateTracker> started = DataPlatformProvider.getFactory().runTransaction(() -> {
+        raised.clear();
+        long now = OrbitalProperties.getCurrentTime();
+        List<DataSourceUpdateTracker> results = findByIDs(tids);
+        for (DataSourceUpdateTracker next : results) {
+          next.trackerStart = now;
+          raise(raised, TrackerEvent.Type.STARTED, next);
+        }
+        return results;
+      });
+      events.fire(raised);
+      return started;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Finish a set of trackers in a single transaction.  Equivalent to calling finishTracker on each
+   * tracker with an empty detail message.
+   *
+   * @param statuses final status of each tracker, keyed by tracker ID.  Unknown IDs are ignored.
+   * @return the finished trackers, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> finishTrackers(final Map<Long, UpdateStatus> statuses) {
+    return finishTrackers(statuses, Collections.emptyMap());
+  }
+
+  /**
+   * Finish a set of trackers in a single transaction.  Equivalent to calling finishTracker on each tracker.
+   *
+   * @param statuses final status of each tracker, keyed by tracker ID.  Unknown IDs are ignored.
+   * @param details  detail message of each tracker, keyed by tracker ID.  Trackers without an entry
+   *                 get an empty message.
+   * @return the finished trackers, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> finishTrackers(final Map<Long, UpdateStatus> statuses,
+                                                             final Map<Long, String> details) {
+    for (Long tid : statuses.keySet()) flushQueued(tid);
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      List<DataSourceUpdateTracker> finished = runWrite(() -> {
+        raised.clear();
+        long now = OrbitalProperties.getCurrentTime();
+        List<DataSourceUpdateTracker> results = findByIDs(statuses.keySet());
+        for (DataSourceUpdateTracker next : results) {
+          next.trackerEnd = now;
+          next.trackerStatus = statuses.get(next.tid);
+          next.trackerDetail = details.getOrDefault(next.tid, "");
+          raise(raised, TrackerEvent.Type.FINISHED, next);
+        }
+        // Flush tracker updates as one batch before maintaining the latest table
+        DataPlatformProvider.getFactory().getEntityManager().flush();
+        DataSourceUpdateTrackerLatest.recordAll(results);
+        releaseFinished(results);
+        return results;
+      });
+      events.fire(raised);
+      return finished;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Save changes to a set of trackers in a single transaction.  Equivalent to calling updateTracker on each tracker.
+   *
+   * @param trackers the trackers to save.
+   * @return the saved trackers in the same order, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> updateTrackers(final Collection<DataSourceUpdateTracker> trackers) {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      List<DataSourceUpdateTracker> updated = runWrite(() -> {
+        raised.clear();
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        List<DataSourceUpdateTracker> results = new ArrayList<>(trackers.size());
+        List<DataSourceUpdateTracker> reopened = new ArrayList<>();
+        for (DataSourceUpdateTracker next : trackers) {
+          DataSourceUpdateTracker existing = em.find(DataSourceUpdateTracker.class, next.getTid());
+          long oldStart = existing == null ? -1 : existing.trackerStart;
+          long oldEnd = existing == null ? -1 : existing.trackerEnd;
+          DataSourceUpdateTracker result = em.merge(next);
+          raiseTransitions(raised, oldStart, oldEnd, result);
+          results.add(result);
+          if (oldEnd != -1 && result.trackerEnd == -1) reopened.add(result);
+          if (results.size() % BATCH_SIZE == 0) em.flush();
+        }
+        em.flush();
+        for (DataSourceUpdateTracker next : reopened) DataSourceUpdateTrackerLatest.forget(next);
+        DataSourceUpdateTrackerLatest.recordAll(results);
+        releaseFinished(results);
+        return results;
+      });
+      events.fire(raised);
+      return updated;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  // Run a write transaction, retrying if it conflicts with a concurrent transaction.  Writes which finish or
+  // reopen trackers maintain the latest tracker table, where writers of the same source and type race on
+  // one row.  Pruners race the same way on rollup rows.  Retries only help when the write runs in its own
+  // transaction rather than joining an enclosing one.
+  private static <A> A runWrite(RunInTransaction<A> write) throws ExecutionException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return DataPlatformProvider.getFactory().runTransaction(write);
+      } catch (ExecutionException e) {
+        if (attempt == WRITE_ATTEMPTS || !PersistenceErrors.isConflict(e)) throw e;
+        log.log(Level.FINE, "write conflict, retrying", e);
+      }
+    }
+  }
+
+  /**
+   * Write queued progress updates for TrackerUpdateWriter.  Unlike updateTrackers, only the start time, status
+   * and detail of each tracker are written, and only while the stored tracker is still open.  A queued copy
+   * can be older than a direct write (e.g. a finish or the reaper), so copies of trackers which have since
+   * finished or been deleted are stale and are skipped rather than reopening or recreating the tracker.
+   * Stored trackers are read under a write lock so a concurrent finish can not slip in between.
+   *
+   * @param trackers queued copies of open trackers.
+   * @return the trackers which were written.  Stale copies are not included.
+   * @throws ExecutionException if the write fails.  The cause tells whether it is worth retrying, see
+   *                            PersistenceErrors.
+   */
+  static List<DataSourceUpdateTracker> writeQueued(final Collection<DataSourceUpdateTracker> trackers)
+      throws ExecutionException {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    Map<Long, DataSourceUpdateTracker> updates = new HashMap<>();
+    for (DataSourceUpdateTracker next : trackers) updates.put(next.tid, next);
+    List<DataSourceUpdateTracker> written = runWrite(() -> {
+      raised.clear();
+      List<DataSourceUpdateTracker> results = new ArrayList<>(updates.size());
+      for (DataSourceUpdateTracker stored : findByIDs(updates.keySet(), LockModeType.PESSIMISTIC_WRITE)) {
+        if (stored.trackerEnd != -1) continue;
+        DataSourceUpdateTracker update = updates.get(stored.tid);
+        long oldStart = stored.trackerStart;
+        stored.trackerStart = update.trackerStart;
+        stored.trackerStatus = update.trackerStatus;
+        stored.trackerDetail = update.trackerDetail;
+        raiseTransitions(raised, oldStart, -1, stored);
+        results.add(stored);
+      }
+      return results;
+    });
+    events.fire(raised);
+    return written;
+  }
+
+  // Release the leases on any finished trackers in the list.  Must be called from within a transaction.
+  private static void releaseFinished(List<DataSourceUpdateTracker> trackers) {
+    List<Long> tids = new ArrayList<>();
+    for (DataSourceUpdateTracker next : trackers) {
+      if (next.trackerEnd == -1) continue;
+      tids.add(next.tid);
+      next.leaseOwner = null;
+      next.leaseExpiry = -1;
+    }
+    for (int i = 0; i < tids.size(); i += BATCH_SIZE) {
+      DataPlatformProvider.getFactory().getEntityManager().createNamedQuery("DataSourceUpdateTracker.releaseLeases")
+                          .setParameter("tids", tids.subList(i, Math.min(i + BATCH_SIZE, tids.size())))
+                          .executeUpdate();
+    }
+  }
+
+  /**
+   * Claim the earliest due open tracker which is not leased, or whose lease has expired.  Trackers are due from
+   * creation unless setDueTime defers them.  A claim is a guarded update which only succeeds while the tracker
+   * is still open and unleased, so concurrent claimers never receive the same tracker.  A claimer which loses a
+   * race for a candidate moves on to the next candidate.
+   * <p>
+   * Claims do not use SELECT ... FOR UPDATE SKIP LOCKED.  Hibernate 5.2 only emits SKIP LOCKED for a few
+   * dialects, and MySQLDialect is not one of them, so a locking read would make every claimer wait on the
+   * same row.  The guarded update only holds a row lock for the length of one short claim transaction.
+   *
+   * @param owner         unique ID of the claiming node.
+   * @param leaseDuration lease length in milliseconds.  Renew with renewLease before it expires.
+   * @return the claimed tracker, or null if nothing is claimable or an error occurred.
+   */
+  public static DataSourceUpdateTracker claimNext(final String owner, final long leaseDuration) {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
-        return DataPlatformProvider.getFactory().getEntityManager().merge(tracker);
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        long now = OrbitalProperties.getCurrentTime();
+        TypedQuery<Long> getter = em.createNamedQuery("DataSourceUpdateTracker.getClaimable", Long.class);
+        getter.setParameter("now", now);
+        getter.setMaxResults(CLAIM_CANDIDATES);
+        for (Long tid : getter.getResultList()) {
+          int claimed = em.createNamedQuery("DataSourceUpdateTracker.claimLease")
+                          .setParameter("owner", owner)
+                          .setParameter("expiry", now + leaseDuration)
+                          .setParameter("tid", tid)
+                          .setParameter("now", now)
+                          .executeUpdate();
+          // Zero means another node claimed or finished this tracker first
+          if (claimed == 1) return em.find(DataSourceUpdateTracker.class, tid);
+        }
+        return null;
       });
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -249,6 +814,74 @@ public class DataSourceUpdateTracker {
     return null;
   }
 
+
+  /**
+   * Extend a lease held by the given owner.  Renewal fails if the tracker has finished or was claimed
+   * by another node after the lease expired.
+   *
+   * @param tid           the ID of the leased tracker.
+   * @param owner         unique ID of the node holding the lease.
+   * @param leaseDuration new lease length in milliseconds from now.
+   * @return true if the lease was renewed, false if the lease was lost or an error occurred.
+   */
+  public static boolean renewLease(final long tid, final String owner, final long leaseDuration) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        return DataPlatformProvider.getFactory().getEntityManager().createNamedQuery("DataSourceUpdateTracker.renewLease")
+                                   .setParameter("expiry", OrbitalProperties.getCurrentTime() + leaseDuration)
+                                   .setParameter("tid", tid)
+                                   .setParameter("owner", owner)
+                                   .executeUpdate() == 1;
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return false;
+  }
+
+  /**
+   * Give up a lease without finishing the tracker, making it immediately claimable by another node.
+   * Finishing a tracker releases its lease automatically.
+   *
+   * @param tid   the ID of the leased tracker.
+   * @param owner unique ID of the node holding the lease.
+   * @return true if the lease was released, false if it was not held by this owner or an error occurred.
+   */
+  public static boolean releaseLease(final long tid, final String owner) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        return DataPlatformProvider.getFactory().getEntityManager().createNamedQuery("DataSourceUpdateTracker.releaseLease")
+                                   .setParameter("tid", tid)
+                                   .setParameter("owner", owner)
+                                   .executeUpdate() == 1;
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return false;
+  }
+
+  // Load trackers by ID in chunks to bound the size of the IN list.  Must be called from within a transaction.
+  private static List<DataSourceUpdateTracker> findByIDs(Collection<Long> tids) {
+    return findByIDs(tids, LockModeType.NONE);
+  }
+
+  // Load trackers by ID with the given lock.  IDs are visited in order so that concurrent callers lock rows in
+  // the same order.  Must be called from within a transaction.
+  private static List<DataSourceUpdateTracker> findByIDs(Collection<Long> tids, LockModeType lock) {
+    List<DataSourceUpdateTracker> results = new ArrayList<>(tids.size());
+    List<Long> ids = new ArrayList<>(tids);
+    Collections.sort(ids);
+    for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+      TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+          "DataSourceUpdateTracker.findByIDs", DataSourceUpdateTracker.class);
+      getter.setParameter("tids", ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())));
+      getter.setLockMode(lock);
+      results.addAll(getter.getResultList());
+    }
+    return results;
+  }
+
   public static DataSourceUpdateTracker get(final DataSource source, final long tid) {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
@@ -305,10 +938,9 @@ public class DataSourceUpdateTracker {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
         TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
-            "DataSourceUpdateTracker.getLatestFinished", DataSourceUpdateTracker.class);
+            "DataSourceUpdateTrackerLatest.getTracker", DataSourceUpdateTracker.class);
         getter.setParameter("source", source);
         getter.setParameter("dtype", dtype);
-        getter.setMaxResults(1);
         try {
           return getter.getSingleResult();
         } catch (NoResultException e) {
@@ -324,17 +956,34 @@ public class DataSourceUpdateTracker {
   public static List<DataSourceUpdateTracker> getAllLatestFinishedTrackers(final DataSource source) {
     try {
       return DataPlatformProvider.getFactory().runTransaction(() -> {
-        // Get all unique data source types for this source
-        TypedQuery<String> typeGetter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
-            "DataSourceUpdateTracker.getAllTypes", String.class);
-        typeGetter.setParameter("source", source);
-        List<String> types = typeGetter.getResultList();
-        // Now query for the latest finished value of each type
-        List<DataSourceUpdateTracker> results = new ArrayList<>();
-        for (String nextType : types) {
-          DataSourceUpdateTracker nextTracker = getLatestFinishedTracker(source, nextType);
-          if (nextTracker != null) results.add(nextTracker);
-        }
+        TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTrackerLatest.getAllTrackers", DataSourceUpdateTracker.class);
+        getter.setParameter("source", source);
+        return getter.getResultList();
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Rebuild the materialized latest finished trackers for a data source from tracker history.  This is a one
+   * time migration for history written before the latest table existed (see "ekdptool tracker rebuild"), and is
+   * also needed after trackers were removed by hand.  Reads never search history, so until a source is rebuilt
+   * its older history is invisible to getLatestFinishedTracker and getAllLatestFinishedTrackers.
+   *
+   * @param source the data source to rebuild.
+   * @return the latest finished tracker for each type, or null on error.
+   */
+  public static List<DataSourceUpdateTracker> rebuildLatestFinishedTrackers(final DataSource source) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        DataPlatformProvider.getFactory().getEntityManager().createNamedQuery("DataSourceUpdateTrackerLatest.deleteBySource")
+                            .setParameter("source", source)
+                            .executeUpdate();
+        List<DataSourceUpdateTracker> results = findAllLatestFinished(source);
+        for (DataSourceUpdateTracker next : results) DataSourceUpdateTrackerLatest.record(next);
         return results;
       });
     } catch (Exception e) {
@@ -343,4 +992,168 @@ public class DataSourceUpdateTracker {
     return null;
   }
 
+  /**
+   * Finish one batch of trackers which were started before a cutoff but never finished, marking each as
+   * ERROR with the given detail message.  Trackers leased by a collector node are left alone unless the lease
+   * also expired before the cutoff, so a node which keeps renewing its lease is never reaped.  Callers should
+   * repeat until fewer than batchSize trackers are finished.  Candidates which finish, restart or renew a lease
+   * between selection and reaping are skipped, so a batch can come up short while stale trackers remain.  Those
+   * are found by the next pass.
+   *
+   * @param cutoff    trackers started strictly before this time (milliseconds UTC) are finished.
+   * @param batchSize maximum number of trackers to finish.
+   * @param detail    detail message to set on each finished tracker.
+   * @return number of trackers finished, or -1 on error.
+   */
+  public static int reapStale(final long cutoff, final int batchSize, final String detail) {
+    final List<TrackerEvent> raised = new ArrayList<>();
+    try {
+      // Select candidates in their own transaction so that queued progress updates can be written before the
+      // reaping transaction starts, as finishTracker does.  This also keeps the writer's lock from being taken
+      // while a transaction is open.
+      List<Long> candidates = DataPlatformProvider.getFactory().runTransaction(() -> {
+        TypedQuery<Long> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTracker.getStale", Long.class);
+        getter.setParameter("cutoff", cutoff);
+        getter.setMaxResults(batchSize);
+        return getter.getResultList();
+      });
+      if (candidates.isEmpty()) return 0;
+      for (Long tid : candidates) flushQueued(tid);
+      int reaped = runWrite(() -> {
+        raised.clear();
+        long now = OrbitalProperties.getCurrentTime();
+        List<DataSourceUpdateTracker> batch = new ArrayList<>(candidates.size());
+        for (DataSourceUpdateTracker next : findByIDs(candidates, LockModeType.PESSIMISTIC_WRITE)) {
+          // Skip trackers which finished, restarted or had their lease renewed since they were selected
+          if (next.trackerEnd != -1 || next.trackerStart == -1 || next.trackerStart >= cutoff ||
+              next.leaseExpiry >= cutoff) continue;
+          next.trackerEnd = now;
+          next.trackerStatus = UpdateStatus.ERROR;
+          next.trackerDetail = detail;
+          raise(raised, TrackerEvent.Type.FINISHED, next);
+          batch.add(next);
+        }
+        DataPlatformProvider.getFactory().getEntityManager().flush();
+        DataSourceUpdateTrackerLatest.recordAll(batch);
+        releaseFinished(batch);
+        return batch.size();
+      });
+      events.fire(raised);
+      return reaped;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return -1;
+  }
+
+
+  /**
+   * Remove one batch of finished trackers which ended before a cutoff, folding each into its daily
+   * DataSourceUpdateTrackerRollup first.  The latest finished tracker of each type is never removed.
+   * Each batch commits separately so that pruning never holds locks for long.  Callers should repeat
+   * until fewer than batchSize trackers are removed.  Candidates are read under a write lock, so
+   * concurrent pruners of the same source never fold a tracker into a rollup twice.
+   *
+   * @param source    the data source to prune.
+   * @param cutoff    trackers which ended strictly before this time (milliseconds UTC) are removed.
+   * @param batchSize maximum number of trackers to remove.
+   * @return number of trackers removed, or -1 on error.
+   */
+  public static int pruneHistory(final DataSource source, final long cutoff, final int batchSize) {
+    try {
+      return runWrite(() -> {
+        TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTracker.getPrunable", DataSourceUpdateTracker.class);
+        getter.setParameter("source", source);
+        getter.setParameter("cutoff", cutoff);
+        getter.setMaxResults(batchSize);
+        // A pruner which waited on these locks reads the rows again, skipping those already deleted
+        getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        List<DataSourceUpdateTracker> batch = getter.getResultList();
+        if (batch.isEmpty()) return 0;
+        DataSourceUpdateTrackerRollup.recordAll(batch);
+        List<Long> tids = new ArrayList<>(batch.size());
+        for (DataSourceUpdateTracker next : batch) tids.add(next.tid);
+        return DataPlatformProvider.getFactory().getEntityManager().createNamedQuery("DataSourceUpdateTracker.deleteByIDs")
+                                   .setParameter("tids", tids)
+                                   .executeUpdate();
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return -1;
+  }
+
+  /**
+   * Count the trackers of a data source.
+   *
+   * @param source the data source.
+   * @return number of trackers, or -1 on error.
+   */
+  public static long countTrackers(final DataSource source) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        return DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTracker.countBySource", Long.class)
+                                   .setParameter("source", source)
+                                   .getSingleResult();
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return -1;
+  }
+
+  /**
+   * Delete one chunk of a data source's tracker history, finished or not, along with the derived latest tracker
+   * and rollup rows.  Callers should repeat until fewer than chunkSize trackers are deleted.
+   *
+   * @param source    the data source.
+   * @param chunkSize maximum number of trackers to delete.
+   * @return number of trackers deleted, or -1 on error.
+   */
+  static int deleteHistory(final DataSource source, final int chunkSize) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        // Rows which refer to trackers go first.  These are small and cheap to delete again on every chunk.
+        em.createNamedQuery("DataSourceUpdateTrackerLatest.deleteBySource")
+          .setParameter("source", source)
+          .executeUpdate();
+        em.createNamedQuery("DataSourceUpdateTrackerRollup.deleteBySource")
+          .setParameter("source", source)
+          .executeUpdate();
+        TypedQuery<Long> getter = em.createNamedQuery("DataSourceUpdateTracker.getIDsBySource", Long.class);
+        getter.setParameter("source", source);
+        getter.setMaxResults(chunkSize);
+        List<Long> tids = getter.getResultList();
+        if (tids.isEmpty()) return 0;
+        return em.createNamedQuery("DataSourceUpdateTracker.deleteByIDs")
+                 .setParameter("tids", tids)
+                 .executeUpdate();
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return -1;
+  }
+
+  // Find the latest finished tracker for each type from tracker history.  Must be called from within a transaction.
+  private static List<DataSourceUpdateTracker> findAllLatestFinished(DataSource source) {
+    TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+        "DataSourceUpdateTracker.getAllLatestFinished", DataSourceUpdateTracker.class);
+    getter.setParameter("source", source);
+    // Trackers of the same type may share an end time.  Keep the first of each type, which is the
+    // most recently created since results are ordered by descending tid within each type.
+    List<DataSourceUpdateTracker> results = new ArrayList<>();
+    String lastType = null;
+    for (DataSourceUpdateTracker next : getter.getResultList()) {
+      if (!results.isEmpty() && Objects.equals(lastType, next.dataSourceType)) continue;
+      results.add(next);
+      lastType = next.dataSourceType;
+    }
+    return results;
+  }
+
 }
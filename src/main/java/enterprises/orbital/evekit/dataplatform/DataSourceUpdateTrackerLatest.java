@@ -0,0 +1,284 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.LockModeType;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.NoResultException;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Materialized "latest finished tracker" for each (data source, update type) pair.  Rows are upserted
+ * by DataSourceUpdateTracker in the same transaction which sets or clears a tracker's end time.  Rows are
+ * read under a write lock before they are changed.  Two writers inserting the first row for the same pair
+ * still race on the unique index, so writers retry on conflict (see PersistenceErrors).  Reading the
+ * latest status of a source never needs to scan tracker history.  History which predates this table is
+ * materialized once by DataSourceUpdateTracker.rebuildLatestFinishedTrackers.  Until then it is not seen
+ * by reads.
+ */
+@Entity
+@Table(
+    name = "evekit_dp_tracker_latest",
+    indexes = {
+        @Index(
+            name = "latestSourceTypeIndex",
+            columnList = "sid, dataSourceType",
+            unique = true)
+    })
+@NamedQueries({
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerLatest.get",
+        query = "SELECT c FROM DataSourceUpdateTrackerLatest c where c.source = :source and c.dataSourceType = :dtype"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerLatest.getTracker",
+        query = "SELECT c.tracker FROM DataSourceUpdateTrackerLatest c where c.source = :source and c.dataSourceType = :dtype"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerLatest.getAllTrackers",
+        query = "SELECT c.tracker FROM DataSourceUpdateTrackerLatest c where c.source = :source order by c.dataSourceType"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerLatest.getAll",
+        query = "SELECT c FROM DataSourceUpdateTrackerLatest c where c.source = :source"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerLatest.deleteBySource",
+        query = "DELETE FROM DataSourceUpdateTrackerLatest c where c.source = :source"),
+})
+public class DataSourceUpdateTrackerLatest {
+
+  // Unique row ID
+  @Id
+  @GeneratedValue(
+      strategy = GenerationType.SEQUENCE,
+      generator = "ekdp_seq")
+  @SequenceGenerator(
+      name = "ekdp_seq",
+      initialValue = 100000,
+      allocationSize = 10,
+      sequenceName = "dp_sequence")
+  private long lid;
+
+  // Data source which owns the tracker
+  @ManyToOne
+  @JoinColumn(
+      name = "sid",
+      referencedColumnName = "sid")
+  private DataSource source;
+
+  // Update type of the tracker
+  private String dataSourceType;
+
+  // Latest finished tracker for this source and type
+  @ManyToOne
+  @JoinColumn(
+      name = "tid",
+      referencedColumnName = "tid")
+  private DataSourceUpdateTracker tracker;
+
+  // Copy of the tracker end time so we can decide whether to replace the row without loading the tracker
+  private long trackerEnd;
+
+  public DataSource getSource() {
+    return source;
+  }
+
+  public String getDataSourceType() {
+    return dataSourceType;
+  }
+
+  public DataSourceUpdateTracker getTracker() {
+    return tracker;
+  }
+
+  public long getTrackerEnd() {
+    return trackerEnd;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    DataSourceUpdateTrackerLatest that = (DataSourceUpdateTrackerLatest) o;
+
+    if (lid != that.lid) return false;
+    if (trackerEnd != that.trackerEnd) return false;
+    if (source != null ? !source.equals(that.source) : that.source != null) return false;
+    if (dataSourceType != null ? !dataSourceType.equals(that.dataSourceType) : that.dataSourceType != null)
+      return false;
+    return tracker != null ? tracker.getTid() == that.tracker.getTid() : that.tracker == null;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (lid ^ (lid >>> 32));
+    result = 31 * result + (source != null ? source.hashCode() : 0);
+    result = 31 * result + (dataSourceType != null ? dataSourceType.hashCode() : 0);
+    result = 31 * result + (int) (trackerEnd ^ (trackerEnd >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "DataSourceUpdateTrackerLatest{" +
+        "lid=" + lid +
+        ", source=" + source +
+        ", dataSourceType='" + dataSourceType + '\'' +
+        ", tid=" + (tracker != null ? tracker.getTid() : -1) +
+        ", trackerEnd=" + trackerEnd +
+        '}';
+  }
+
+  /**
+   * Record a set of finished trackers.  This is equivalent to calling record on each tracker but reads
+   * and locks the current rows once per data source rather than once per tracker, so that pending updates
+   * can be flushed in JDBC batches.  Must be called from within a transaction.
+   *
+   * @param trackers managed trackers.  Unfinished trackers are ignored.
+   */
+  static void recordAll(Collection<DataSourceUpdateTracker> trackers) {
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    Map<Long, Map<String, DataSourceUpdateTrackerLatest>> current = new HashMap<>();
+    List<DataSourceUpdateTrackerLatest> changed = new ArrayList<>();
+    for (DataSourceUpdateTracker tracker : trackers) {
+      if (tracker.getTrackerEnd() == -1) continue;
+      Map<String, DataSourceUpdateTrackerLatest> bySource = current.get(tracker.getSource()
+                                                                               .getSid());
+      if (bySource == null) {
+        bySource = new HashMap<>();
+        TypedQuery<DataSourceUpdateTrackerLatest> getter = em.createNamedQuery("DataSourceUpdateTrackerLatest.getAll",
+                                                                               DataSourceUpdateTrackerLatest.class);
+        getter.setParameter("source", tracker.getSource());
+        getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        for (DataSourceUpdateTrackerLatest next : getter.getResultList()) bySource.put(next.dataSourceType, next);
+        current.put(tracker.getSource()
+                           .getSid(), bySource);
+      }
+      DataSourceUpdateTrackerLatest latest = bySource.get(tracker.getDataSourceType());
+      if (latest != null && latest.tracker.getTid() == tracker.getTid() && tracker.getTrackerEnd() < latest.trackerEnd) {
+        // End time moved back, fall back to a full search for this type
+        record(tracker);
+        TypedQuery<DataSourceUpdateTrackerLatest> getter = em.createNamedQuery("DataSourceUpdateTrackerLatest.get",
+                                                                               DataSourceUpdateTrackerLatest.class);
+        getter.setParameter("source", tracker.getSource());
+        getter.setParameter("dtype", tracker.getDataSourceType());
+        getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        bySource.put(tracker.getDataSourceType(), getter.getSingleResult());
+        continue;
+      }
+      if (latest != null && (latest.trackerEnd > tracker.getTrackerEnd() ||
+          (latest.trackerEnd == tracker.getTrackerEnd() && latest.tracker.getTid() > tracker.getTid())))
+        continue;
+      if (latest == null) {
+        latest = new DataSourceUpdateTrackerLatest();
+        latest.source = tracker.getSource();
+        latest.dataSourceType = tracker.getDataSourceType();
+        bySource.put(latest.dataSourceType, latest);
+        changed.add(latest);
+      }
+      latest.tracker = tracker;
+      latest.trackerEnd = tracker.getTrackerEnd();
+    }
+    // Existing rows are managed and will be flushed automatically.  New rows must be persisted.
+    for (DataSourceUpdateTrackerLatest next : changed) em.persist(next);
+  }
+
+  /**
+   * Record a finished tracker, replacing the current latest tracker for its source and type if the new
+   * tracker finished later.  Unfinished trackers are ignored.  Must be called from within a transaction.
+   *
+   * @param tracker a managed tracker.
+   */
+  static void record(DataSourceUpdateTracker tracker) {
+    if (tracker.getTrackerEnd() == -1) return;
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    TypedQuery<DataSourceUpdateTrackerLatest> getter = em.createNamedQuery("DataSourceUpdateTrackerLatest.get",
+                                                                           DataSourceUpdateTrackerLatest.class);
+    getter.setParameter("source", tracker.getSource());
+    getter.setParameter("dtype", tracker.getDataSourceType());
+    getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+    DataSourceUpdateTrackerLatest latest;
+    try {
+      latest = getter.getSingleResult();
+      if (latest.tracker.getTid() == tracker.getTid()) {
+        // The latest tracker itself was changed.  If its end time moved back then an older tracker may now
+        // be the latest, so search history again.  The changed tracker is still finished so the search
+        // always finds a tracker.
+        if (tracker.getTrackerEnd() < latest.trackerEnd)
+          tracker = findLatest(tracker.getSource(), tracker.getDataSourceType());
+      } else if (latest.trackerEnd > tracker.getTrackerEnd() ||
+          (latest.trackerEnd == tracker.getTrackerEnd() && latest.tracker.getTid() > tracker.getTid())) {
+        // Keep the existing row if it is newer.  Ties go to the most recently created tracker.
+        return;
+      }
+    } catch (NoResultException e) {
+      latest = new DataSourceUpdateTrackerLatest();
+      latest.source = tracker.getSource();
+      latest.dataSourceType = tracker.getDataSourceType();
+    }
+    latest.tracker = tracker;
+    latest.trackerEnd = tracker.getTrackerEnd();
+    em.merge(latest);
+  }
+
+  /**
+   * Forget a tracker which was reopened, i.e. whose end time was cleared.  If it was the latest finished
+   * tracker of its type, the row is pointed at the newest remaining finished tracker of that type, or
+   * removed if there is none.  Must be called from within a transaction after the tracker is changed.
+   *
+   * @param tracker a managed tracker.
+   */
+  static void forget(DataSourceUpdateTracker tracker) {
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    TypedQuery<DataSourceUpdateTrackerLatest> getter = em.createNamedQuery("DataSourceUpdateTrackerLatest.get",
+                                                                           DataSourceUpdateTrackerLatest.class);
+    getter.setParameter("source", tracker.getSource());
+    getter.setParameter("dtype", tracker.getDataSourceType());
+    getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+    DataSourceUpdateTrackerLatest latest;
+    try {
+      latest = getter.getSingleResult();
+    } catch (NoResultException e) {
+      return;
+    }
+    if (latest.tracker.getTid() != tracker.getTid()) return;
+    DataSourceUpdateTracker previous = findLatest(tracker.getSource(), tracker.getDataSourceType());
+    if (previous == null) {
+      em.remove(latest);
+      return;
+    }
+    latest.tracker = previous;
+    latest.trackerEnd = previous.getTrackerEnd();
+  }
+
+  // Search tracker history for the latest finished tracker of a type.  The query flushes pending tracker
+  // changes first, so trackers changed in the current transaction are seen as changed.
+  private static DataSourceUpdateTracker findLatest(DataSource source, String dtype) {
+    TypedQuery<DataSourceUpdateTracker> history = DataPlatformProvider.getFactory()
+                                                                      .getEntityManager()
+                                                                      .createNamedQuery(
+                                                                          "DataSourceUpdateTracker.getLatestFinished",
+                                                                          DataSourceUpdateTracker.class);
+    history.setParameter("source", source);
+    history.setParameter("dtype", dtype);
+    history.setMaxResults(1);
+    List<DataSourceUpdateTracker> results = history.getResultList();
+    return results.isEmpty() ? null : results.get(0);
+  }
+
+}
@@ -0,0 +1,329 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.LockModeType;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Daily summary of pruned update trackers.  When tracker history is pruned (see DataSourceTrackerRetention),
+ * each removed tracker is first folded into the rollup for its data source, update type and UTC day of
+ * its end time.  Rollups record the number of trackers with each status and the min, max and mean
+ * duration of trackers which have both a start and an end time.
+ */
+@Entity
+@Table(
+    name = "evekit_dp_tracker_rollup",
+    indexes = {
+        @Index(
+            name = "rollupSourceTypeDayIndex",
+            columnList = "sid, dataSourceType, day",
+            unique = true),
+        @Index(
+            name = "rollupSourceDayIndex",
+            columnList = "sid, day")
+    })
+@NamedQueries({
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerRollup.getDays",
+        query = "SELECT c FROM DataSourceUpdateTrackerRollup c where c.source = :source and c.dataSourceType in :dtypes and c.day in :days"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerRollup.getRange",
+        query = "SELECT c FROM DataSourceUpdateTrackerRollup c where c.source = :source and c.day >= :start and c.day < :end order by c.day, c.dataSourceType"),
+    @NamedQuery(
+        name = "DataSourceUpdateTrackerRollup.deleteBySource",
+        query = "DELETE FROM DataSourceUpdateTrackerRollup c where c.source = :source"),
+})
+@ApiModel(description = "EveKit Data Source Update Tracker Daily Rollup")
+public class DataSourceUpdateTrackerRollup {
+  private static final Logger log = Logger.getLogger(DataSourceUpdateTrackerRollup.class.getName());
+
+  private static final long DAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+  // Unique rollup ID
+  @Id
+  @GeneratedValue(
+      strategy = GenerationType.SEQUENCE,
+      generator = "ekdp_seq")
+  @SequenceGenerator(
+      name = "ekdp_seq",
+      initialValue = 100000,
+      allocationSize = 10,
+      sequenceName = "dp_sequence")
+  @JsonProperty("rid")
+  private long rid;
+  // Data source which owned the summarized trackers
+  @ManyToOne
+  @JoinColumn(
+      name = "sid",
+      referencedColumnName = "sid")
+  @ApiModelProperty(value = "Data source to which this rollup is attached")
+  @JsonProperty("account")
+  private DataSource source;
+  @ApiModelProperty(value = "Data source specific data type information")
+  @JsonProperty("dataSourceType")
+  private String dataSourceType;
+  @ApiModelProperty(value = "Start of the summarized UTC day (milliseconds UTC)")
+  @JsonProperty("day")
+  private long day;
+  @ApiModelProperty(value = "Number of trackers with status NOT_STARTED")
+  @JsonProperty("notStartedCount")
+  private long notStartedCount;
+  @ApiModelProperty(value = "Number of trackers with status FINISHED")
+  @JsonProperty("finishedCount")
+  private long finishedCount;
+  @ApiModelProperty(value = "Number of trackers with status ERROR")
+  @JsonProperty("errorCount")
+  private long errorCount;
+  @ApiModelProperty(value = "Number of trackers with status OTHER")
+  @JsonProperty("otherCount")
+  private long otherCount;
+  @ApiModelProperty(value = "Number of trackers contributing to duration statistics")
+  @JsonProperty("durationCount")
+  private long durationCount;
+  @ApiModelProperty(value = "Minimum tracker duration (milliseconds)")
+  @JsonProperty("minDuration")
+  private long minDuration = -1;
+  @ApiModelProperty(value = "Maximum tracker duration (milliseconds)")
+  @JsonProperty("maxDuration")
+  private long maxDuration = -1;
+  @ApiModelProperty(value = "Sum of tracker durations (milliseconds)")
+  @JsonProperty("totalDuration")
+  private long totalDuration;
+
+  public long getRid() {
+    return rid;
+  }
+
+  public DataSource getSource() {
+    return source;
+  }
+
+  public String getDataSourceType() {
+    return dataSourceType;
+  }
+
+  public long getDay() {
+    return day;
+  }
+
+  public long getNotStartedCount() {
+    return notStartedCount;
+  }
+
+  public long getFinishedCount() {
+    return finishedCount;
+  }
+
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  public long getOtherCount() {
+    return otherCount;
+  }
+
+  public long getDurationCount() {
+    return durationCount;
+  }
+
+  public long getMinDuration() {
+    return minDuration;
+  }
+
+  public long getMaxDuration() {
+    return maxDuration;
+  }
+
+  public long getTotalDuration() {
+    return totalDuration;
+  }
+
+  /**
+   * @return mean tracker duration in milliseconds, or -1 if no tracker contributed a duration.
+   */
+  public long getMeanDuration() {
+    return durationCount == 0 ? -1 : totalDuration / durationCount;
+  }
+
+  // Fold a finished tracker into this rollup
+  private void add(DataSourceUpdateTracker tracker) {
+    switch (tracker.getTrackerStatus()) {
+      case NOT_STARTED:
+        notStartedCount++;
+        break;
+      case FINISHED:
+        finishedCount++;
+        break;
+      case ERROR:
+        errorCount++;
+        break;
+      default:
+        otherCount++;
+    }
+    if (tracker.getTrackerStart() != -1 && tracker.getTrackerEnd() >= tracker.getTrackerStart()) {
+      long duration = tracker.getTrackerEnd() - tracker.getTrackerStart();
+      minDuration = minDuration == -1 ? duration : Math.min(minDuration, duration);
+      maxDuration = Math.max(maxDuration, duration);
+      totalDuration += duration;
+      durationCount++;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    DataSourceUpdateTrackerRollup that = (DataSourceUpdateTrackerRollup) o;
+
+    if (rid != that.rid) return false;
+    if (day != that.day) return false;
+    if (notStartedCount != that.notStartedCount) return false;
+    if (finishedCount != that.finishedCount) return false;
+    if (errorCount != that.errorCount) return false;
+    if (otherCount != that.otherCount) return false;
+    if (durationCount != that.durationCount) return false;
+    if (minDuration != that.minDuration) return false;
+    if (maxDuration != that.maxDuration) return false;
+    if (totalDuration != that.totalDuration) return false;
+    if (!source.equals(that.source)) return false;
+    return dataSourceType != null ? dataSourceType.equals(that.dataSourceType) : that.dataSourceType == null;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (rid ^ (rid >>> 32));
+    result = 31 * result + source.hashCode();
+    result = 31 * result + (dataSourceType != null ? dataSourceType.hashCode() : 0);
+    result = 31 * result + (int) (day ^ (day >>> 32));
+    result = 31 * result + (int) (finishedCount ^ (finishedCount >>> 32));
+    result = 31 * result + (int) (errorCount ^ (errorCount >>> 32));
+    result = 31 * result + (int) (totalDuration ^ (totalDuration >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "DataSourceUpdateTrackerRollup{" +
+        "rid=" + rid +
+        ", source=" + source +
+        ", dataSourceType='" + dataSourceType + '\'' +
+        ", day=" + day +
+        ", notStartedCount=" + notStartedCount +
+        ", finishedCount=" + finishedCount +
+        ", errorCount=" + errorCount +
+        ", otherCount=" + otherCount +
+        ", minDuration=" + minDuration +
+        ", maxDuration=" + maxDuration +
+        ", meanDuration=" + getMeanDuration() +
+        '}';
+  }
+
+  /**
+   * Fold a batch of finished trackers into the rollups for their source, type and day, creating rollups as
+   * needed.  The affected rollups of each source are read under a write lock with a single query, so a batch
+   * costs one read (and one flush) per source rather than one per tracker.  Two callers creating the same
+   * rollup race on the unique index and one fails with a conflict, so callers should retry.  Must be called
+   * from within a transaction.
+   *
+   * @param trackers the trackers to summarize.
+   */
+  static void recordAll(Collection<DataSourceUpdateTracker> trackers) {
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    // Group the batch by source, then by type and day
+    Map<Long, List<DataSourceUpdateTracker>> bySource = new HashMap<>();
+    for (DataSourceUpdateTracker next : trackers)
+      bySource.computeIfAbsent(next.getSource()
+                                   .getSid(), k -> new ArrayList<>())
+              .add(next);
+    for (List<DataSourceUpdateTracker> group : bySource.values()) {
+      DataSource source = group.get(0)
+                               .getSource();
+      Set<String> types = new HashSet<>();
+      Set<Long> days = new HashSet<>();
+      for (DataSourceUpdateTracker next : group) {
+        types.add(next.getDataSourceType());
+        days.add(dayOf(next));
+      }
+      TypedQuery<DataSourceUpdateTrackerRollup> getter = em.createNamedQuery("DataSourceUpdateTrackerRollup.getDays",
+                                                                             DataSourceUpdateTrackerRollup.class);
+      getter.setParameter("source", source);
+      getter.setParameter("dtypes", types);
+      getter.setParameter("days", days);
+      getter.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+      Map<String, DataSourceUpdateTrackerRollup> rollups = new HashMap<>();
+      for (DataSourceUpdateTrackerRollup next : getter.getResultList())
+        rollups.put(next.dataSourceType + "/" + next.day, next);
+      for (DataSourceUpdateTracker next : group) {
+        long day = dayOf(next);
+        DataSourceUpdateTrackerRollup rollup = rollups.get(next.getDataSourceType() + "/" + day);
+        if (rollup == null) {
+          rollup = new DataSourceUpdateTrackerRollup();
+          rollup.source = source;
+          rollup.dataSourceType = next.getDataSourceType();
+          rollup.day = day;
+          em.persist(rollup);
+          rollups.put(rollup.dataSourceType + "/" + day, rollup);
+        }
+        rollup.add(next);
+      }
+    }
+  }
+
+  // Start of the UTC day in which a tracker ended
+  private static long dayOf(DataSourceUpdateTracker tracker) {
+    return tracker.getTrackerEnd() - Math.floorMod(tracker.getTrackerEnd(), DAY);
+  }
+
+  /**
+   * Retrieve the rollups for a data source for every day in a range.
+   *
+   * @param source the data source.
+   * @param start  start of the range (inclusive, milliseconds UTC).
+   * @param end    end of the range (exclusive, milliseconds UTC).
+   * @return rollups ordered by day and type, or null on error.
+   */
+  public static List<DataSourceUpdateTrackerRollup> getRollups(final DataSource source, final long start,
+                                                               final long end) {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        TypedQuery<DataSourceUpdateTrackerRollup> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTrackerRollup.getRange", DataSourceUpdateTrackerRollup.class);
+        getter.setParameter("source", source);
+        getter.setParameter("start", start);
+        getter.setParameter("end", end);
+        return getter.getResultList();
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,69 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single row counter which is incremented whenever a DataSource is created, changed or deleted.  Processes
+ * caching data sources (see DataSourceRegistry) compare this counter with the version they loaded to detect
+ * changes made elsewhere without reloading every source.
+ */
+@Entity
+@Table(
+    name = "evekit_dp_source_version")
+@NamedQueries({
+    @NamedQuery(
+        name = "DataSourceVersion.increment",
+        query = "UPDATE DataSourceVersion c set c.version = c.version + 1 where c.id = 1"),
+})
+public class DataSourceVersion {
+  private static final Logger log = Logger.getLogger(DataSourceVersion.class.getName());
+
+  // Always 1, there is only ever one row
+  @Id
+  private long id;
+  private long version;
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Retrieve the current version.
+   *
+   * @return the current version, 0 if no data source has ever changed, or -1 on error.
+   */
+  public static long get() {
+    try {
+      return DataPlatformProvider.getFactory().runTransaction(() -> {
+        DataSourceVersion current = DataPlatformProvider.getFactory().getEntityManager().find(DataSourceVersion.class, 1L);
+        return current == null ? 0L : current.version;
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return -1;
+  }
+
+  /**
+   * Increment the version.  Must be called from within the transaction which changes a data source.
+   */
+  static void increment() {
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    if (em.createNamedQuery("DataSourceVersion.increment")
+          .executeUpdate() == 0) {
+      DataSourceVersion first = new DataSourceVersion();
+      first.id = 1;
+      first.version = 1;
+      em.persist(first);
+    }
+  }
+
+}
@@ -5,7 +5,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.swagger.annotations.ApiModel;
 
 import javax.persistence.*;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,9 +38,21 @@ import java.util.logging.Logger;
     @NamedQuery(
         name = "ESIToken.findByID",
         query = "SELECT c FROM ESIToken c where c.kid = :kid"),
+    @NamedQuery(
+        name = "ESIToken.findByIDs",
+        query = "SELECT c FROM ESIToken c where c.kid in :kids"),
     @NamedQuery(
         name = "ESIToken.findAllByUser",
-        query = "SELECT c FROM ESIToken c where c.userAccount = :userAccount")
+        query = "SELECT c FROM ESIToken c where c.userAccount = :userAccount"),
+    @NamedQuery(
+        name = "ESIToken.findAll",
+        query = "SELECT c FROM ESIToken c"),
+    @NamedQuery(
+        name = "ESIToken.findByScope",
+        query = "SELECT c FROM ESIToken c, ESITokenScope s where s.kid = c.kid and s.scope = :scope"),
+    @NamedQuery(
+        name = "ESIToken.findAllRefreshable",
+        query = "SELECT c FROM ESIToken c where c.refreshToken is not null")
 })
 @ApiModel(
     description = "ESI access key")
@@ -188,9 +203,11 @@ public class ESIToken {
                                      result.userAccount = userAccount;
                                      result.scopes = scopes;
                                      result.characterName = characterName;
-                                     return DataPlatformProvider.getFactory()
-                                                                .getEntityManager()
-                                                                .merge(result);
+                                     result = DataPlatformProvider.getFactory()
+                                                                  .getEntityManager()
+                                                                  .merge(result);
+                                     ESITokenScope.sync(result.kid, scopes);
+                                     return result;
                                    });
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -218,6 +235,75 @@ public class ESIToken {
     return null;
   }
 
+  /**
+   * Retrieve a set of keys with a single query.
+   *
+   * @param kids the IDs of the keys to retrieve.
+   * @return the keys which exist, in no particular order, or null on error.
+   */
+  public static List<ESIToken> getKeysByID(final Collection<Long> kids) {
+    if (kids.isEmpty()) return new ArrayList<>();
+    try {
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   TypedQuery<ESIToken> getter = DataPlatformProvider.getFactory()
+                                                                                     .getEntityManager()
+                                                                                     .createNamedQuery("ESIToken.findByIDs", ESIToken.class);
+                                   getter.setParameter("kids", kids);
+                                   return getter.getResultList();
+                                 });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Find all keys which grant the given scope.  This is an index lookup on the normalized scope table.
+   *
+   * @param scope the scope to search for.
+   * @return the keys which grant the scope, or null on error.
+   */
+  public static List<ESIToken> findByScope(final String scope) {
+    try {
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   TypedQuery<ESIToken> getter = DataPlatformProvider.getFactory()
+                                                                                     .getEntityManager()
+                                                                                     .createNamedQuery("ESIToken.findByScope", ESIToken.class);
+                                   getter.setParameter("scope", scope);
+                                   return getter.getResultList();
+                                 });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Rebuild the normalized scope table from the scopes stored on each key.  Only needed once to populate
+   * the table for keys created before it existed.
+   *
+   * @return true if the rebuild succeeded, false otherwise.
+   */
+  public static boolean rebuildScopeIndex() {
+    try {
+      DataPlatformProvider.getFactory()
+                          .runTransaction(() -> {
+                            for (ESIToken next : DataPlatformProvider.getFactory()
+                                                                     .getEntityManager()
+                                                                     .createNamedQuery("ESIToken.findAll", ESIToken.class)
+                                                                     .getResultList()) {
+                              ESITokenScope.sync(next.kid, next.scopes);
+                            }
+                          });
+      return true;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return false;
+  }
+
   public static List<ESIToken> getAllKeys(final DataPlatformUserAccount userAccount) {
     try {
       return DataPlatformProvider.getFactory()
@@ -234,17 +320,35 @@ public class ESIToken {
     return null;
   }
 
+  public static List<ESIToken> getAllRefreshableKeys() {
+    try {
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   TypedQuery<ESIToken> getter = DataPlatformProvider.getFactory()
+                                                                                     .getEntityManager()
+                                                                                     .createNamedQuery("ESIToken.findAllRefreshable", ESIToken.class);
+                                   return getter.getResultList();
+                                 });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
   public static boolean deleteKey(final DataPlatformUserAccount userAccount, final long kid) {
     try {
       DataPlatformProvider.getFactory()
                           .runTransaction(() -> {
                             ESIToken key = getKeyByID(kid);
                             if (key != null && key.getUserAccount()
-                                                  .equals(userAccount))
+                                                  .equals(userAccount)) {
+                              ESITokenScope.remove(kid);
                               DataPlatformProvider.getFactory()
                                                   .getEntityManager()
                                                   .remove(key);
+                            }
                           });
+      ESITokenManager.invalidateCachedToken(kid);
       return true;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -255,14 +359,52 @@ public class ESIToken {
   public static ESIToken update(final ESIToken key) {
     try {
       return DataPlatformProvider.getFactory()
-                                 .runTransaction(() -> DataPlatformProvider.getFactory()
-                                                                           .getEntityManager()
-                                                                           .merge(key));
+                                 .runTransaction(() -> save(key));
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
       return null;
+    } finally {
+      ESITokenManager.invalidateCachedToken(key.getKid());
     }
   }
 
+  // Merge a key and keep the scope index in step.  Must be called from within a transaction.  The current
+  // row is loaded first (merge would load it anyway) so that the index is only rewritten when scopes change.
+  private static ESIToken save(ESIToken key) {
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    ESIToken current = em.find(ESIToken.class, key.kid);
+    boolean scopesChanged = current == null || !Objects.equals(current.scopes, key.scopes);
+    ESIToken result = em.merge(key);
+    if (scopesChanged) ESITokenScope.sync(result.kid, result.scopes);
+    return result;
+  }
+
+  /**
+   * Save a set of keys in a single transaction.
+   *
+   * @param keys the keys to save.
+   * @return the saved keys in the same order as the input, or null if the transaction failed
+   * in which case none of the keys were saved.
+   */
+  public static List<ESIToken> updateAll(final List<ESIToken> keys) {
+    try {
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   List<ESIToken> results = new ArrayList<>(keys.size());
+                                   for (ESIToken next : keys) {
+                                     results.add(save(next));
+                                   }
+                                   return results;
+                                 });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+      return null;
+    } finally {
+      for (ESIToken next : keys) {
+        ESITokenManager.invalidateCachedToken(next.getKid());
+      }
+    }
+  }
 
 }
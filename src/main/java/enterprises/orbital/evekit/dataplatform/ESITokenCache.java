@@ -0,0 +1,125 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of ESI access tokens keyed by token ID.  Entries expire when the cached
+ * access token expires and are invalidated whenever the underlying ESIToken is updated or deleted.
+ * <p>
+ * Callers which populate the cache from a database read must first capture a stamp with
+ * {@link #stamp()} and pass it to {@link #put(long, String, long, long)}.  The entry is dropped
+ * if an invalidation occurred after the stamp was taken, which prevents a slow reader from
+ * caching a token which was changed or removed while the read was in progress.
+ */
+class ESITokenCache {
+
+  static final class Entry {
+    private final String accessToken;
+    private final long expiry;
+
+    private Entry(String accessToken, long expiry) {
+      this.accessToken = accessToken;
+      this.expiry = expiry;
+    }
+
+    String getAccessToken() {
+      return accessToken;
+    }
+
+    long getExpiry() {
+      return expiry;
+    }
+  }
+
+  private final int maxSize;
+  // Size an eviction pass shrinks the cache to.  Evicting in batches means the scan is paid once every
+  // maxSize / 10 new keys rather than on every put into a full cache.
+  private final int evictTo;
+  private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  ESITokenCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.evictTo = Math.max(0, maxSize - Math.max(1, maxSize / 10));
+  }
+
+  /**
+   * Retrieve the cached access token for a key.
+   *
+   * @param kid the ID of the token to retrieve.
+   * @return the cached entry, or null if no unexpired entry exists for this key.
+   */
+  Entry get(long kid) {
+    Entry entry = entries.get(kid);
+    if (entry == null) return null;
+    if (entry.expiry <= OrbitalProperties.getCurrentTime()) {
+      entries.remove(kid, entry);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * @return the current invalidation stamp.  Pass this to put when caching the result of a database read.
+   */
+  long stamp() {
+    return invalidations.get();
+  }
+
+  /**
+   * Cache an access token unless an invalidation has occurred since the given stamp was taken.
+   *
+   * @param kid         the ID of the token to cache.
+   * @param accessToken the access token.
+   * @param expiry      the expiry time (millis UTC) of the access token.
+   * @param stamp       the value of stamp() captured before the token was read.
+   */
+  void put(long kid, String accessToken, long expiry, long stamp) {
+    if (invalidations.get() != stamp) return;
+    put(kid, accessToken, expiry);
+  }
+
+  /**
+   * Cache an access token unconditionally.  Only use this when the caller just persisted the token itself.
+   *
+   * @param kid         the ID of the token to cache.
+   * @param accessToken the access token.
+   * @param expiry      the expiry time (millis UTC) of the access token.
+   */
+  void put(long kid, String accessToken, long expiry) {
+    if (accessToken == null || expiry <= OrbitalProperties.getCurrentTime()) return;
+    if (entries.size() >= maxSize && !entries.containsKey(kid)) evict();
+    entries.put(kid, new Entry(accessToken, expiry));
+  }
+
+  /**
+   * Remove any cached access token for the given key.
+   *
+   * @param kid the ID of the token to invalidate.
+   */
+  void invalidate(long kid) {
+    invalidations.incrementAndGet();
+    entries.remove(kid);
+  }
+
+  // Make room for new entries.  Expired entries go first, then arbitrary entries until the cache is down to
+  // evictTo entries.  Only one thread scans at a time; threads which find the cache already shrunk return.
+  private synchronized void evict() {
+    if (entries.size() < maxSize) return;
+    long now = OrbitalProperties.getCurrentTime();
+    entries.values()
+           .removeIf(entry -> entry.expiry <= now);
+    Iterator<Long> it = entries.keySet()
+                               .iterator();
+    while (entries.size() > evictTo && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+}
@@ -0,0 +1,25 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Pending request store backed by the esi_temp_token table.  Creating a request costs a single insert
+ * and consuming it a single select and delete in one transaction.
+ */
+public class ESITokenDBStateStore implements ESITokenStateStore {
+
+  @Override
+  public NewESIToken create(DataPlatformUserAccount userAccount, long createTime, long expiry, String scopes,
+                            long existingKid) {
+    return NewESIToken.createKey(userAccount, createTime, expiry, scopes, existingKid);
+  }
+
+  @Override
+  public NewESIToken take(String stateKey) {
+    return NewESIToken.takeKeyByState(stateKey);
+  }
+
+  @Override
+  public long cleanExpired(long limit, int chunkSize) {
+    return NewESIToken.cleanExpired(limit, chunkSize);
+  }
+
+}
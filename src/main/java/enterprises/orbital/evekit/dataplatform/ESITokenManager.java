@@ -14,7 +14,23 @@ import enterprises.orbital.oauth.EVEAuthHandler;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +47,10 @@ import java.util.logging.Logger;
  * <li>When the OAuth process invokes your callback, call the processTokenCallback with OAuth configuration
  * information including the servlet request.</li>
  * </ol>
+ * <p>
+ * Callers which hold many tokens can start the background refresh scheduler with startRefreshScheduler.
+ * The scheduler refreshes each token a configurable margin before its access token expires so that
+ * calls to refreshToken rarely need to wait on SSO.
  */
 public class ESITokenManager {
   @SuppressWarnings("WeakerAccess")
@@ -41,28 +61,249 @@ public class ESITokenManager {
   public static final String PROP_TEMP_TOKEN_LIFETIME = "enterprises.orbital.tempTokenLifetime";
   @SuppressWarnings("WeakerAccess")
   public static final long DEF_TEMP_TOKEN_LIFETIME = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TEMP_TOKEN_STORE = "enterprises.orbital.tempTokenStore";
+  @SuppressWarnings("WeakerAccess")
+  public static final String DEF_TEMP_TOKEN_STORE = "db";
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TEMP_TOKEN_SWEEP_INTERVAL = "enterprises.orbital.tempTokenSweepInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TEMP_TOKEN_SWEEP_INTERVAL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TEMP_TOKEN_SWEEP_CHUNK = "enterprises.orbital.tempTokenSweepChunk";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TEMP_TOKEN_SWEEP_CHUNK = 500;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_REFRESH_MARGIN = "enterprises.orbital.token.refreshMargin";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_REFRESH_MARGIN = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_REFRESH_RETRY_DELAY = "enterprises.orbital.token.refreshRetryDelay";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_REFRESH_RETRY_DELAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_REFRESH_THREADS = "enterprises.orbital.token.refreshThreads";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_REFRESH_THREADS = 4;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TOKEN_CACHE_SIZE = "enterprises.orbital.token.cacheSize";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TOKEN_CACHE_SIZE = 10000;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TOKEN_CACHE_REVALIDATE = "enterprises.orbital.token.cacheRevalidateWindow";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TOKEN_CACHE_REVALIDATE = TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_BULK_REFRESH_PARALLELISM = "enterprises.orbital.token.bulkRefreshParallelism";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_BULK_REFRESH_PARALLELISM = 8;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_WINDOW = "enterprises.orbital.token.ssoBreakerWindow";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SSO_BREAKER_WINDOW = 20;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_MIN_CALLS = "enterprises.orbital.token.ssoBreakerMinCalls";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SSO_BREAKER_MIN_CALLS = 5;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_FAILURE_PERCENT = "enterprises.orbital.token.ssoBreakerFailurePercent";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SSO_BREAKER_FAILURE_PERCENT = 50;
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_OPEN_DELAY = "enterprises.orbital.token.ssoBreakerOpenDelay";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_SSO_BREAKER_OPEN_DELAY = TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_MAX_OPEN_DELAY = "enterprises.orbital.token.ssoBreakerMaxOpenDelay";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_SSO_BREAKER_MAX_OPEN_DELAY = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SSO_BREAKER_PROBE_TIMEOUT = "enterprises.orbital.token.ssoBreakerProbeTimeout";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_SSO_BREAKER_PROBE_TIMEOUT = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
   private static final Logger log = Logger.getLogger(ESITokenManager.class.getName());
-  private static boolean cleanerStarted = false;
+  private static volatile ESITokenStateSweeper stateSweeper;
+  // Pending token requests awaiting an SSO callback
+  private static volatile ESITokenStateStore stateStore = "memory".equalsIgnoreCase(
+      OrbitalProperties.getGlobalProperty(PROP_TEMP_TOKEN_STORE, DEF_TEMP_TOKEN_STORE)) ?
+      new ESITokenMemoryStateStore() : new ESITokenDBStateStore();
+  private static volatile ESITokenRefreshScheduler refreshScheduler;
+  // Refreshes currently in progress, keyed by token ID
+  private static final ConcurrentMap<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+  // Recently seen access tokens, keyed by token ID
+  private static final ESITokenCache tokenCache = new ESITokenCache(
+      OrbitalProperties.getIntGlobalProperty(PROP_TOKEN_CACHE_SIZE, DEF_TOKEN_CACHE_SIZE));
+  // Refresh path metrics, published over JMX
+  private static final ESITokenMetrics metrics = new ESITokenMetrics();
+
+  static {
+    DataPlatformMetrics.register("ESITokenMetrics", metrics);
+  }
+
+  // Source of refreshed access tokens and the circuit breaker guarding it
+  private static volatile ESITokenRefresher tokenRefresher = EVEAuthHandler::doRefresh;
+  private static final SSOCircuitBreaker ssoBreaker = new SSOCircuitBreaker(
+      OrbitalProperties.getIntGlobalProperty(PROP_SSO_BREAKER_WINDOW, DEF_SSO_BREAKER_WINDOW),
+      OrbitalProperties.getIntGlobalProperty(PROP_SSO_BREAKER_MIN_CALLS, DEF_SSO_BREAKER_MIN_CALLS),
+      OrbitalProperties.getIntGlobalProperty(PROP_SSO_BREAKER_FAILURE_PERCENT, DEF_SSO_BREAKER_FAILURE_PERCENT) / 100.0,
+      OrbitalProperties.getLongGlobalProperty(PROP_SSO_BREAKER_OPEN_DELAY, DEF_SSO_BREAKER_OPEN_DELAY),
+      OrbitalProperties.getLongGlobalProperty(PROP_SSO_BREAKER_MAX_OPEN_DELAY, DEF_SSO_BREAKER_MAX_OPEN_DELAY),
+      OrbitalProperties.getLongGlobalProperty(PROP_SSO_BREAKER_PROBE_TIMEOUT, DEF_SSO_BREAKER_PROBE_TIMEOUT));
+  // Background revalidation of cached tokens which are close to expiry.  Revalidation is best effort,
+  // requests which arrive when the pool is saturated are dropped.
+  private static final Set<Long> revalidating = ConcurrentHashMap.newKeySet();
+  private static final ThreadPoolExecutor revalidator = new ThreadPoolExecutor(
+      2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+      new DaemonThreadFactory("esi-token-revalidate"), new ThreadPoolExecutor.DiscardPolicy());
+  // SSO calls made by refreshTokens.  Shared by all bulk refreshes so that at most PROP_BULK_REFRESH_PARALLELISM
+  // calls run at once, further calls queue.
+  private static final int bulkParallelism = Math.max(1, OrbitalProperties.getIntGlobalProperty(
+      PROP_BULK_REFRESH_PARALLELISM, DEF_BULK_REFRESH_PARALLELISM));
+  private static final ThreadPoolExecutor bulkRefresher = new ThreadPoolExecutor(
+      bulkParallelism, bulkParallelism, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory("esi-token-bulk-refresh"));
 
+  static {
+    bulkRefresher.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Start the sweeper which removes expired pending token requests.  The sweeper runs every
+   * PROP_TEMP_TOKEN_SWEEP_INTERVAL milliseconds.  Calling this method when the sweeper is already
+   * running has no effect.  A PROP_TEMP_TOKEN_SWEEP_CHUNK below 1 is replaced by the default.
+   */
   public static void init() {
     synchronized (ESITokenManager.class) {
-      if (cleanerStarted) return;
-      new Thread(() -> {
-        while (true) {
-          try {
-            long now = OrbitalProperties.getCurrentTime();
-            NewESIToken.cleanExpired(now);
-            Thread.sleep(TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES));
-          } catch (InterruptedException e) {
-            // We've been told to exit, so exit
-            return;
-          } catch (Throwable e) {
-            // Catch everything but log it
-            log.log(Level.WARNING, "caught error in state cleanup loop (ignoring)", e);
-          }
+      if (stateSweeper != null) return;
+      int chunkSize = OrbitalProperties.getIntGlobalProperty(PROP_TEMP_TOKEN_SWEEP_CHUNK, DEF_TEMP_TOKEN_SWEEP_CHUNK);
+      if (chunkSize < 1) {
+        log.warning(PROP_TEMP_TOKEN_SWEEP_CHUNK + " must be at least 1, using " + DEF_TEMP_TOKEN_SWEEP_CHUNK);
+        chunkSize = DEF_TEMP_TOKEN_SWEEP_CHUNK;
+      }
+      ESITokenStateSweeper sweeper = new ESITokenStateSweeper(chunkSize);
+      sweeper.start(OrbitalProperties.getLongGlobalProperty(PROP_TEMP_TOKEN_SWEEP_INTERVAL,
+                                                            DEF_TEMP_TOKEN_SWEEP_INTERVAL));
+      stateSweeper = sweeper;
+    }
+  }
+
+  /**
+   * Stop all background services started by this class: the pending request sweeper and the refresh
+   * scheduler.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static void shutdown() {
+    synchronized (ESITokenManager.class) {
+      if (stateSweeper != null) {
+        stateSweeper.stop();
+        stateSweeper = null;
+      }
+    }
+    stopRefreshScheduler();
+  }
+
+  /**
+   * @return refresh path metrics.  These are also published over JMX.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static ESITokenMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the pending request sweeper, or null if init has not been called.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static ESITokenStateSweeper getStateSweeper() {
+    return stateSweeper;
+  }
+
+  // Remove expired pending token requests from the current store
+  static long cleanExpiredState(long limit, int chunkSize) {
+    return stateStore.cleanExpired(limit, chunkSize);
+  }
+
+  /**
+   * Start refreshing all tokens in the background.  Each token is refreshed PROP_REFRESH_MARGIN milliseconds
+   * before its access token expires using a pool of PROP_REFRESH_THREADS workers.  Calling this method when
+   * the scheduler is already running has no effect.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static void startRefreshScheduler() {
+    synchronized (ESITokenManager.class) {
+      if (refreshScheduler != null) return;
+      ESITokenRefreshScheduler scheduler = new ESITokenRefreshScheduler(
+          OrbitalProperties.getLongGlobalProperty(PROP_REFRESH_MARGIN, DEF_REFRESH_MARGIN),
+          OrbitalProperties.getLongGlobalProperty(PROP_REFRESH_RETRY_DELAY, DEF_REFRESH_RETRY_DELAY),
+          OrbitalProperties.getIntGlobalProperty(PROP_REFRESH_THREADS, DEF_REFRESH_THREADS),
+          OrbitalProperties.getGlobalProperty(DataPlatformProvider.PROP_EVE_TOKEN_CLIENT_ID),
+          OrbitalProperties.getGlobalProperty(DataPlatformProvider.PROP_EVE_TOKEN_SECRET_KEY));
+      scheduler.start();
+      refreshScheduler = scheduler;
+    }
+  }
+
+  /**
+   * Stop the background refresh scheduler if it is running.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static void stopRefreshScheduler() {
+    synchronized (ESITokenManager.class) {
+      if (refreshScheduler == null) return;
+      refreshScheduler.stop();
+      refreshScheduler = null;
+    }
+  }
+
+  /**
+   * Replace the store used to hold pending token requests.  By default requests are stored in the
+   * database unless PROP_TEMP_TOKEN_STORE is set to "memory".
+   *
+   * @param store the new store.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static void setStateStore(ESITokenStateStore store) {
+    stateStore = store;
+  }
+
+  /**
+   * Replace the component used to exchange refresh tokens for access tokens.  The default calls EVE SSO.
+   * Install a stub to exercise refresh behavior, including the SSO circuit breaker, without a live SSO.
+   *
+   * @param refresher the new refresher.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static void setTokenRefresher(ESITokenRefresher refresher) {
+    tokenRefresher = refresher;
+  }
+
+  // Let the refresh scheduler know a token has a new access token
+  private static void scheduleRefresh(ESIToken key) {
+    ESITokenRefreshScheduler scheduler = refreshScheduler;
+    if (scheduler != null) scheduler.schedule(key.getKid(), key.getAccessTokenExpiry());
+  }
+
+  // Drop any cached access token for the given key.  Called whenever the stored token changes.
+  static void invalidateCachedToken(long kid) {
+    tokenCache.invalidate(kid);
+  }
+
+  // Refresh a cached token in the background while callers continue to use the cached value
+  private static void revalidate(final long kid, final long expiryWindow, final String eveClientID,
+                                 final String eveSecretKey) {
+    if (inFlight.containsKey(kid) || !revalidating.add(kid)) return;
+    try {
+      revalidator.execute(() -> {
+        try {
+          refreshToken(kid, expiryWindow, eveClientID, eveSecretKey, false);
+        } catch (IOException e) {
+          log.log(Level.FINE, "Background revalidation failed for key: " + kid, e);
+        } finally {
+          revalidating.remove(kid);
         }
-      }).start();
-      cleanerStarted = true;
+      });
+    } catch (RuntimeException e) {
+      revalidating.remove(kid);
+      throw e;
     }
   }
 
@@ -79,7 +320,8 @@ public class ESITokenManager {
       if (eKey == null || !eKey.getUserAccount()
                                .equals(userAccount)) return null;
     }
-    NewESIToken key = NewESIToken.createKey(userAccount, now, expiry, scopes, existing);
+    NewESIToken key = stateStore.create(userAccount, now, expiry, scopes, existing);
+    if (key == null) return null;
     // Start the OAuth flow to authenticate the listed scopes
     return EVEAuthHandler.doGet(eveClientID, eveSecretKey, callback, scopes, key.getStateKey(), req);
   }
@@ -88,12 +330,24 @@ public class ESITokenManager {
   public static boolean processTokenCallback(HttpServletRequest req, String verifyURL, String eveClientID,
                                              String eveSecretKey)
       throws IOException {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      success = handleTokenCallback(req, verifyURL, eveClientID, eveSecretKey);
+      return success;
+    } finally {
+      metrics.recordCallback(System.nanoTime() - start, success);
+    }
+  }
+
+  private static boolean handleTokenCallback(HttpServletRequest req, String verifyURL, String eveClientID,
+                                             String eveSecretKey)
+      throws IOException {
     // Extract key information associated with state.  Fail if no key information found.
     String stateKey = req.getParameter("state");
     if (stateKey == null) return false;
-    NewESIToken keyState = NewESIToken.getKeyByState(stateKey);
-    if (keyState == null) return false;
-    NewESIToken.deleteKey(keyState.getKid());
+    NewESIToken keyState = stateStore.take(stateKey);
+    if (keyState == null || keyState.getExpiry() <= OrbitalProperties.getCurrentTime()) return false;
 
     // Construct the service to use for verification.
     OAuth20Service service = new ServiceBuilder().apiKey(eveClientID)
@@ -128,7 +382,8 @@ public class ESITokenManager {
     update.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() +
                                     TimeUnit.MILLISECONDS.convert(accessToken.getExpiresIn(), TimeUnit.SECONDS));
     update.setRefreshToken(accessToken.getRefreshToken());
-    ESIToken.update(update);
+    update = ESIToken.update(update);
+    if (update != null) scheduleRefresh(update);
 
     return true;
   }
@@ -136,7 +391,82 @@ public class ESITokenManager {
   @SuppressWarnings("WeakerAccess")
   public static String refreshToken(long kid, long expiryWindow, String eveClientID, String eveSecretKey)
       throws IOException {
+    long start = System.nanoTime();
+    try {
+      return refreshToken(kid, expiryWindow, eveClientID, eveSecretKey, true);
+    } finally {
+      metrics.recordRefresh(System.nanoTime() - start);
+    }
+  }
+
+  // Return the cached access token for a key if it is valid for at least expiryWindow milliseconds, otherwise null.
+  // If the token is getting close to expiry then start a refresh in the background.
+  private static String getCachedToken(long kid, long expiryWindow, String eveClientID, String eveSecretKey) {
+    ESITokenCache.Entry cached = tokenCache.get(kid);
+    if (cached == null) return null;
+    long remaining = cached.getExpiry() - OrbitalProperties.getCurrentTime();
+    if (remaining < expiryWindow) return null;
+    long revalidateWindow = expiryWindow + OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_CACHE_REVALIDATE,
+                                                                                   DEF_TOKEN_CACHE_REVALIDATE);
+    if (remaining < revalidateWindow) revalidate(kid, revalidateWindow, eveClientID, eveSecretKey);
+    metrics.recordCacheHit();
+    return cached.getAccessToken();
+  }
+
+  private static String refreshToken(long kid, long expiryWindow, String eveClientID, String eveSecretKey,
+                                     boolean useCache)
+      throws IOException {
+    // Serve from the cache if the cached token is still valid.  If the token is getting close to expiry then
+    // start a refresh in the background and return the still valid token.
+    if (useCache) {
+      String cached = getCachedToken(kid, expiryWindow, eveClientID, eveSecretKey);
+      if (cached != null) return cached;
+    }
     // Find token
+    long stamp = tokenCache.stamp();
+    ESIToken key = ESIToken.getKeyByID(kid);
+    if (key == null) throw new IOException("No key with ID: " + kid);
+    // Return the current access token if it is still valid
+    if (key.getAccessTokenExpiry() - OrbitalProperties.getCurrentTime() >= expiryWindow) {
+      tokenCache.put(kid, key.getAccessToken(), key.getAccessTokenExpiry(), stamp);
+      metrics.recordValidHit();
+      return key.getAccessToken();
+    }
+    // Key within expiry window, refresh.  Only one refresh per key may be in flight at a time.  Concurrent
+    // callers wait for and share the result of the refresh already in progress.  This avoids duplicate
+    // SSO calls and prevents a caller from persisting a refresh token which has already been rotated.
+    CompletableFuture<String> pending = new CompletableFuture<>();
+    CompletableFuture<String> existing = inFlight.putIfAbsent(kid, pending);
+    if (existing != null) return awaitRefresh(kid, existing);
+    try {
+      String token = refreshKey(kid, expiryWindow, eveClientID, eveSecretKey);
+      pending.complete(token);
+      return token;
+    } catch (IOException | RuntimeException e) {
+      pending.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(kid, pending);
+    }
+  }
+
+  private static String awaitRefresh(long kid, CompletableFuture<String> pending) throws IOException {
+    try {
+      return pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for refresh of key: " + kid);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause()
+                             .getMessage(), e.getCause());
+    }
+  }
+
+  // Perform the actual refresh for a key.  Callers must hold the in flight slot for the key.
+  private static String refreshKey(long kid, long expiryWindow, String eveClientID, String eveSecretKey)
+      throws IOException {
+    // Re-read the key as a refresh may have completed since the caller last checked
     ESIToken key = ESIToken.getKeyByID(kid);
     if (key == null) throw new IOException("No key with ID: " + kid);
     // Ensure the access token is valid, if not attempt to renew it
@@ -146,14 +476,15 @@ public class ESITokenManager {
       if (refreshToken == null || refreshToken.trim()
                                               .isEmpty())
         throw new IOException("No valid refresh token for key: " + kid);
+      // If SSO looks to be down then don't bother calling it
+      if (!ssoBreaker.allowRequest()) return serveWhileUnavailable(key);
       OAuth2AccessToken newToken;
 
       try {
-        newToken = EVEAuthHandler.doRefresh(eveClientID, eveSecretKey, refreshToken);
+        newToken = callSSO(eveClientID, eveSecretKey, refreshToken);
       } catch (Exception e) {
         // Might be revoked, in which case we'll need re-authorization
-        if (e instanceof OAuth2AccessTokenErrorResponse &&
-            ((OAuth2AccessTokenErrorResponse) e).getErrorCode() == OAuth2AccessTokenErrorResponse.ErrorCode.invalid_grant) {
+        if (isRevoked(e)) {
           // Token revoked or otherwise invalid, clear it in our storage
           key.setRefreshToken(null);
           ESIToken.update(key);
@@ -164,14 +495,352 @@ public class ESITokenManager {
         throw new IOException("Error refreshing token for key: " + kid);
       }
 
-      key.setAccessToken(newToken.getAccessToken());
-      key.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() +
-                                   TimeUnit.MILLISECONDS.convert(newToken.getExpiresIn(), TimeUnit.SECONDS));
-      key.setRefreshToken(newToken.getRefreshToken());
+      applyRefresh(key, newToken);
       key = ESIToken.update(key);
       if (key == null) throw new IOException("Failed to save refreshed token for key: " + kid);
+      tokenCache.put(kid, key.getAccessToken(), key.getAccessTokenExpiry());
+      scheduleRefresh(key);
     }
     return key.getAccessToken();
   }
 
+  // Call SSO to refresh a token.  Callers must have been admitted by the circuit breaker.  The outcome is
+  // always reported back to the breaker, whatever the refresher throws.  A revoked token still counts as a
+  // success since SSO answered.
+  private static OAuth2AccessToken callSSO(String eveClientID, String eveSecretKey, String refreshToken)
+      throws Exception {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      OAuth2AccessToken newToken = tokenRefresher.refresh(eveClientID, eveSecretKey, refreshToken);
+      metrics.recordSSORefresh(System.nanoTime() - start);
+      success = true;
+      return newToken;
+    } catch (Exception e) {
+      if (isRevoked(e)) {
+        metrics.recordRevoked(System.nanoTime() - start);
+        success = true;
+      } else {
+        metrics.recordTransientFailure(System.nanoTime() - start);
+      }
+      throw e;
+    } finally {
+      if (success)
+        ssoBreaker.recordSuccess();
+      else
+        ssoBreaker.recordFailure();
+    }
+  }
+
+  // Called when a key needs a refresh but the circuit breaker is open.  Keep serving the current access token
+  // if it has not actually expired yet, otherwise fail fast.
+  private static String serveWhileUnavailable(ESIToken key) throws IOException {
+    metrics.recordCircuitRejection();
+    if (key.getAccessToken() != null && key.getAccessTokenExpiry() > OrbitalProperties.getCurrentTime())
+      return key.getAccessToken();
+    throw new IOException("SSO unavailable, unable to refresh key: " + key.getKid());
+  }
+
+  // True if an SSO refresh failure indicates the refresh token has been revoked
+  private static boolean isRevoked(Throwable e) {
+    return e instanceof OAuth2AccessTokenErrorResponse &&
+        ((OAuth2AccessTokenErrorResponse) e).getErrorCode() == OAuth2AccessTokenErrorResponse.ErrorCode.invalid_grant;
+  }
+
+  private static void applyRefresh(ESIToken key, OAuth2AccessToken newToken) {
+    key.setAccessToken(newToken.getAccessToken());
+    key.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() +
+                                 TimeUnit.MILLISECONDS.convert(newToken.getExpiresIn(), TimeUnit.SECONDS));
+    key.setRefreshToken(newToken.getRefreshToken());
+  }
+
+  // SSO call made on behalf of refreshTokens.  A call which has not started yet can be cancelled.
+  private static final class BulkCall implements Runnable {
+    private final String eveClientID;
+    private final String eveSecretKey;
+    private final String refreshToken;
+    // Set by whichever of run and cancel happens first
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CompletableFuture<OAuth2AccessToken> result = new CompletableFuture<>();
+
+    private BulkCall(String eveClientID, String eveSecretKey, String refreshToken) {
+      this.eveClientID = eveClientID;
+      this.eveSecretKey = eveSecretKey;
+      this.refreshToken = refreshToken;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) return;
+      try {
+        result.complete(callSSO(eveClientID, eveSecretKey, refreshToken));
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    // Prevent the call from running.  Returns false if the call has already started.
+    private boolean cancel() {
+      if (!claimed.compareAndSet(false, true)) return false;
+      ssoBreaker.recordAbandoned();
+      return true;
+    }
+
+    // Wait for the call to complete.  If the waiting thread is interrupted, a call which has not started yet is
+    // cancelled and null is returned.  A call which has started is still waited for since SSO may already have
+    // rotated its refresh token, in which case the result must be saved.  The interrupt status is preserved.
+    private OAuth2AccessToken await() throws ExecutionException {
+      boolean interrupted = Thread.interrupted();
+      try {
+        while (true) {
+          if (interrupted && cancel()) return null;
+          try {
+            return result.get();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) Thread.currentThread()
+                               .interrupt();
+      }
+    }
+  }
+
+  /**
+   * Outcome of refreshing a single token with refreshTokens.  Exactly one of the access token and the error is set.
+   */
+  public static class RefreshResult {
+    private final String accessToken;
+    private final IOException error;
+
+    private RefreshResult(String accessToken, IOException error) {
+      this.accessToken = accessToken;
+      this.error = error;
+    }
+
+    static RefreshResult success(String accessToken) {
+      return new RefreshResult(accessToken, null);
+    }
+
+    static RefreshResult failure(IOException error) {
+      return new RefreshResult(null, error);
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    public String getAccessToken() {
+      return accessToken;
+    }
+
+    public IOException getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Bulk version of refreshToken.  All keys are loaded with a single query, keys within the expiry window
+   * are refreshed in parallel with at most PROP_BULK_REFRESH_PARALLELISM concurrent SSO calls (shared by all
+   * callers), and all updated keys are saved in a single transaction.  Refreshes already in progress for any
+   * of the keys are joined rather than repeated.  If the caller is interrupted, SSO calls which have not
+   * started are abandoned but the results of calls already made are still saved.
+   *
+   * @param kids         the IDs of the keys to refresh.
+   * @param expiryWindow refresh any key whose access token expires within this many milliseconds.
+   * @param eveClientID  EVE SSO client ID.
+   * @param eveSecretKey EVE SSO secret key.
+   * @return a map from each requested key ID to the result for that key.
+   */
+  @SuppressWarnings("WeakerAccess")
+  public static Map<Long, RefreshResult> refreshTokens(Collection<Long> kids, long expiryWindow, String eveClientID,
+                                                       String eveSecretKey) {
+    Map<Long, RefreshResult> results = new HashMap<>();
+    // Serve what we can from the cache
+    List<Long> uncached = new ArrayList<>();
+    for (Long kid : new LinkedHashSet<>(kids)) {
+      String cached = getCachedToken(kid, expiryWindow, eveClientID, eveSecretKey);
+      if (cached != null)
+        results.put(kid, RefreshResult.success(cached));
+      else
+        uncached.add(kid);
+    }
+    if (uncached.isEmpty()) return results;
+    // Load everything else in one query
+    long stamp = tokenCache.stamp();
+    List<ESIToken> keys = ESIToken.getKeysByID(uncached);
+    if (keys == null) {
+      for (Long kid : uncached) {
+        results.put(kid, RefreshResult.failure(new IOException("Error retrieving key: " + kid)));
+      }
+      return results;
+    }
+    Map<Long, ESIToken> byID = new HashMap<>();
+    for (ESIToken next : keys) {
+      byID.put(next.getKid(), next);
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    List<Long> expiring = new ArrayList<>();
+    for (Long kid : uncached) {
+      ESIToken key = byID.get(kid);
+      if (key == null) {
+        results.put(kid, RefreshResult.failure(new IOException("No key with ID: " + kid)));
+      } else if (key.getAccessTokenExpiry() - now >= expiryWindow) {
+        tokenCache.put(kid, key.getAccessToken(), key.getAccessTokenExpiry(), stamp);
+        metrics.recordValidHit();
+        results.put(kid, RefreshResult.success(key.getAccessToken()));
+      } else {
+        expiring.add(kid);
+      }
+    }
+    if (expiring.isEmpty()) return results;
+    // Claim the in flight slot for each expiring key.  Keys already being refreshed elsewhere are joined.
+    Map<Long, CompletableFuture<String>> owned = new HashMap<>();
+    Map<Long, CompletableFuture<String>> joined = new HashMap<>();
+    for (Long kid : expiring) {
+      CompletableFuture<String> pending = new CompletableFuture<>();
+      CompletableFuture<String> existing = inFlight.putIfAbsent(kid, pending);
+      if (existing == null)
+        owned.put(kid, pending);
+      else
+        joined.put(kid, existing);
+    }
+    try {
+      if (!owned.isEmpty()) refreshKeys(owned.keySet(), expiryWindow, eveClientID, eveSecretKey, results);
+    } finally {
+      for (Map.Entry<Long, CompletableFuture<String>> next : owned.entrySet()) {
+        long kid = next.getKey();
+        RefreshResult result = results.get(kid);
+        if (result == null) {
+          result = RefreshResult.failure(new IOException("Refresh abandoned for key: " + kid));
+          results.put(kid, result);
+        }
+        if (result.isSuccess())
+          next.getValue()
+              .complete(result.getAccessToken());
+        else
+          next.getValue()
+              .completeExceptionally(result.getError());
+        inFlight.remove(kid, next.getValue());
+      }
+    }
+    for (Map.Entry<Long, CompletableFuture<String>> next : joined.entrySet()) {
+      try {
+        results.put(next.getKey(), RefreshResult.success(awaitRefresh(next.getKey(), next.getValue())));
+      } catch (IOException e) {
+        results.put(next.getKey(), RefreshResult.failure(e));
+      }
+    }
+    return results;
+  }
+
+  // Refresh a set of keys for which the caller holds the in flight slot, storing the outcome for each key in results.
+  private static void refreshKeys(Collection<Long> kids, long expiryWindow, final String eveClientID,
+                                  final String eveSecretKey, Map<Long, RefreshResult> results) {
+    // Re-read the keys as refreshes may have completed since the caller last checked
+    long stamp = tokenCache.stamp();
+    List<ESIToken> keys = ESIToken.getKeysByID(kids);
+    if (keys == null) {
+      for (Long kid : kids) {
+        results.put(kid, RefreshResult.failure(new IOException("Error retrieving key: " + kid)));
+      }
+      return;
+    }
+    Map<Long, ESIToken> byID = new HashMap<>();
+    for (ESIToken next : keys) {
+      byID.put(next.getKid(), next);
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    List<ESIToken> toRefresh = new ArrayList<>();
+    for (Long kid : kids) {
+      ESIToken key = byID.get(kid);
+      if (key == null) {
+        results.put(kid, RefreshResult.failure(new IOException("No key with ID: " + kid)));
+      } else if (key.getAccessTokenExpiry() - now >= expiryWindow) {
+        tokenCache.put(kid, key.getAccessToken(), key.getAccessTokenExpiry(), stamp);
+        metrics.recordValidHit();
+        results.put(kid, RefreshResult.success(key.getAccessToken()));
+      } else if (key.getRefreshToken() == null || key.getRefreshToken()
+                                                      .trim()
+                                                      .isEmpty()) {
+        results.put(kid, RefreshResult.failure(new IOException("No valid refresh token for key: " + kid)));
+      } else {
+        toRefresh.add(key);
+      }
+    }
+    if (toRefresh.isEmpty()) return;
+    // Call SSO in parallel
+    List<ESIToken> changed = new ArrayList<>();
+    Set<Long> refreshed = new HashSet<>();
+    List<BulkCall> calls = new ArrayList<>(toRefresh.size());
+    for (ESIToken key : toRefresh) {
+      // Keys which the circuit breaker turns away have no call
+      if (!ssoBreaker.allowRequest()) {
+        calls.add(null);
+        continue;
+      }
+      BulkCall call = new BulkCall(eveClientID, eveSecretKey, key.getRefreshToken());
+      bulkRefresher.execute(call);
+      calls.add(call);
+    }
+    for (int i = 0; i < toRefresh.size(); i++) {
+      ESIToken key = toRefresh.get(i);
+      long kid = key.getKid();
+      if (calls.get(i) == null) {
+        try {
+          results.put(kid, RefreshResult.success(serveWhileUnavailable(key)));
+        } catch (IOException e) {
+          results.put(kid, RefreshResult.failure(e));
+        }
+        continue;
+      }
+      try {
+        OAuth2AccessToken newToken = calls.get(i)
+                                          .await();
+        if (newToken == null) {
+          results.put(kid, RefreshResult.failure(new InterruptedIOException("Interrupted refreshing key: " + kid)));
+          continue;
+        }
+        applyRefresh(key, newToken);
+        changed.add(key);
+        refreshed.add(kid);
+      } catch (ExecutionException e) {
+        if (isRevoked(e.getCause())) {
+          // Token revoked or otherwise invalid, clear it in our storage
+          key.setRefreshToken(null);
+          changed.add(key);
+          results.put(kid, RefreshResult.failure(new IOException("Refresh token revoked for key: " + kid)));
+        } else {
+          // Anything else we treat as SSO being down.
+          log.log(Level.WARNING, "Error refreshing token for key: " + kid, e.getCause());
+          results.put(kid, RefreshResult.failure(new IOException("Error refreshing token for key: " + kid)));
+        }
+      }
+    }
+    if (changed.isEmpty()) return;
+    // Save all changes in one transaction.  This must happen even if we were interrupted since the old refresh
+    // tokens have been consumed, so clear the interrupt status while saving.
+    boolean interrupted = Thread.interrupted();
+    List<ESIToken> saved;
+    try {
+      saved = ESIToken.updateAll(changed);
+    } finally {
+      if (interrupted) Thread.currentThread()
+                             .interrupt();
+    }
+    if (saved == null) {
+      for (Long kid : refreshed) {
+        results.put(kid, RefreshResult.failure(new IOException("Failed to save refreshed token for key: " + kid)));
+      }
+      return;
+    }
+    for (ESIToken key : saved) {
+      if (!refreshed.contains(key.getKid())) continue;
+      tokenCache.put(key.getKid(), key.getAccessToken(), key.getAccessTokenExpiry());
+      scheduleRefresh(key);
+      results.put(key.getKid(), RefreshResult.success(key.getAccessToken()));
+    }
+  }
+
 }
@@ -0,0 +1,43 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pending request store which keeps requests in memory.  Only suitable for single node deployments
+ * where the SSO callback is always served by the process which started the login.  Pending requests
+ * are lost on restart, which at worst forces affected users to restart their login.
+ */
+public class ESITokenMemoryStateStore implements ESITokenStateStore {
+  private final Map<String, NewESIToken> pending = new ConcurrentHashMap<>();
+
+  @Override
+  public NewESIToken create(DataPlatformUserAccount userAccount, long createTime, long expiry, String scopes,
+                            long existingKid) {
+    NewESIToken key = NewESIToken.newKey(userAccount, createTime, expiry, scopes, existingKid);
+    pending.put(key.getStateKey(), key);
+    return key;
+  }
+
+  @Override
+  public NewESIToken take(String stateKey) {
+    return pending.remove(stateKey);
+  }
+
+  @Override
+  public long cleanExpired(long limit, int chunkSize) {
+    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1: " + chunkSize);
+    long removed = 0;
+    for (Iterator<NewESIToken> it = pending.values()
+                                           .iterator(); it.hasNext(); ) {
+      if (it.next()
+            .getExpiry() <= limit) {
+        it.remove();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+}
@@ -0,0 +1,213 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for ESITokenManager, published over JMX as
+ * enterprises.orbital.evekit.dataplatform:type=ESITokenMetrics.  All recording methods are lock free
+ * and allocation free so they can be called on every refresh.
+ */
+public class ESITokenMetrics implements ESITokenMetricsMBean {
+  // Calls to refreshToken
+  private final LongAdder refreshCalls = new LongAdder();
+  // Valid token served from the in-memory cache
+  private final LongAdder cacheHits = new LongAdder();
+  // Valid token served from the database
+  private final LongAdder validHits = new LongAdder();
+  // Successful SSO refreshes
+  private final LongAdder ssoRefreshes = new LongAdder();
+  // SSO refreshes which failed because the refresh token was revoked (invalid_grant)
+  private final LongAdder revokedFailures = new LongAdder();
+  // SSO refreshes which failed for any other reason
+  private final LongAdder transientFailures = new LongAdder();
+  // Refreshes turned away because the SSO circuit breaker was open
+  private final LongAdder circuitRejections = new LongAdder();
+  private final LongAdder callbacks = new LongAdder();
+  private final LongAdder callbackFailures = new LongAdder();
+  private final LatencyHistogram refreshLatency = new LatencyHistogram();
+  private final LatencyHistogram ssoLatency = new LatencyHistogram();
+  private final LatencyHistogram callbackLatency = new LatencyHistogram();
+
+  void recordRefresh(long nanos) {
+    refreshCalls.increment();
+    refreshLatency.record(nanos);
+  }
+
+  void recordCacheHit() {
+    cacheHits.increment();
+  }
+
+  void recordValidHit() {
+    validHits.increment();
+  }
+
+  void recordSSORefresh(long nanos) {
+    ssoRefreshes.increment();
+    ssoLatency.record(nanos);
+  }
+
+  void recordRevoked(long nanos) {
+    revokedFailures.increment();
+    ssoLatency.record(nanos);
+  }
+
+  void recordTransientFailure(long nanos) {
+    transientFailures.increment();
+    ssoLatency.record(nanos);
+  }
+
+  void recordCircuitRejection() {
+    circuitRejections.increment();
+  }
+
+  void recordCallback(long nanos, boolean success) {
+    callbacks.increment();
+    if (!success) callbackFailures.increment();
+    callbackLatency.record(nanos);
+  }
+
+  @Override
+  public long getRefreshCalls() {
+    return refreshCalls.sum();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  @Override
+  public long getValidHits() {
+    return validHits.sum();
+  }
+
+  @Override
+  public long getSSORefreshes() {
+    return ssoRefreshes.sum();
+  }
+
+  @Override
+  public long getRevokedFailures() {
+    return revokedFailures.sum();
+  }
+
+  @Override
+  public long getTransientFailures() {
+    return transientFailures.sum();
+  }
+
+  @Override
+  public long getCircuitRejections() {
+    return circuitRejections.sum();
+  }
+
+  @Override
+  public double getRefreshLatencyMean() {
+    return refreshLatency.getMeanMillis();
+  }
+
+  @Override
+  public double getRefreshLatency50() {
+    return refreshLatency.getPercentileMillis(50);
+  }
+
+  @Override
+  public double getRefreshLatency90() {
+    return refreshLatency.getPercentileMillis(90);
+  }
+
+  @Override
+  public double getRefreshLatency99() {
+    return refreshLatency.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getRefreshLatencyMax() {
+    return refreshLatency.getMaxMillis();
+  }
+
+  @Override
+  public double getSSOLatencyMean() {
+    return ssoLatency.getMeanMillis();
+  }
+
+  @Override
+  public double getSSOLatency50() {
+    return ssoLatency.getPercentileMillis(50);
+  }
+
+  @Override
+  public double getSSOLatency90() {
+    return ssoLatency.getPercentileMillis(90);
+  }
+
+  @Override
+  public double getSSOLatency99() {
+    return ssoLatency.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getSSOLatencyMax() {
+    return ssoLatency.getMaxMillis();
+  }
+
+  @Override
+  public long getCallbacks() {
+    return callbacks.sum();
+  }
+
+  @Override
+  public long getCallbackFailures() {
+    return callbackFailures.sum();
+  }
+
+  @Override
+  public double getCallbackLatencyMean() {
+    return callbackLatency.getMeanMillis();
+  }
+
+  @Override
+  public double getCallbackLatency50() {
+    return callbackLatency.getPercentileMillis(50);
+  }
+
+  @Override
+  public double getCallbackLatency90() {
+    return callbackLatency.getPercentileMillis(90);
+  }
+
+  @Override
+  public double getCallbackLatency99() {
+    return callbackLatency.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getCallbackLatencyMax() {
+    return callbackLatency.getMaxMillis();
+  }
+
+  @Override
+  public long getSweepRuns() {
+    ESITokenStateSweeper sweeper = ESITokenManager.getStateSweeper();
+    return sweeper == null ? 0 : sweeper.getRuns();
+  }
+
+  @Override
+  public long getSweepLastSwept() {
+    ESITokenStateSweeper sweeper = ESITokenManager.getStateSweeper();
+    return sweeper == null ? 0 : sweeper.getLastSwept();
+  }
+
+  @Override
+  public long getSweepTotalSwept() {
+    ESITokenStateSweeper sweeper = ESITokenManager.getStateSweeper();
+    return sweeper == null ? 0 : sweeper.getTotalSwept();
+  }
+
+  @Override
+  public long getSweepLastDuration() {
+    ESITokenStateSweeper sweeper = ESITokenManager.getStateSweeper();
+    return sweeper == null ? 0 : sweeper.getLastDuration();
+  }
+
+}
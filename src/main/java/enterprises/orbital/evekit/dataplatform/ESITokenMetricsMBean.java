@@ -0,0 +1,64 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * JMX view of ESI token refresh metrics.  Latencies are reported in milliseconds.
+ */
+public interface ESITokenMetricsMBean {
+
+  long getRefreshCalls();
+
+  long getCacheHits();
+
+  long getValidHits();
+
+  long getSSORefreshes();
+
+  long getRevokedFailures();
+
+  long getTransientFailures();
+
+  long getCircuitRejections();
+
+  double getRefreshLatencyMean();
+
+  double getRefreshLatency50();
+
+  double getRefreshLatency90();
+
+  double getRefreshLatency99();
+
+  double getRefreshLatencyMax();
+
+  double getSSOLatencyMean();
+
+  double getSSOLatency50();
+
+  double getSSOLatency90();
+
+  double getSSOLatency99();
+
+  double getSSOLatencyMax();
+
+  long getCallbacks();
+
+  long getCallbackFailures();
+
+  double getCallbackLatencyMean();
+
+  double getCallbackLatency50();
+
+  double getCallbackLatency90();
+
+  double getCallbackLatency99();
+
+  double getCallbackLatencyMax();
+
+  long getSweepRuns();
+
+  long getSweepLastSwept();
+
+  long getSweepTotalSwept();
+
+  long getSweepLastDuration();
+
+}
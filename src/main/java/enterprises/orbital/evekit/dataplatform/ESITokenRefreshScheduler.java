@@ -0,0 +1,159 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background refresher for ESI tokens.  Tokens are queued in order of access token expiry and
+ * refreshed a fixed margin before they expire.  Refreshes run on a bounded worker pool.  When the
+ * pool is saturated, the dispatcher thread performs the refresh itself which naturally throttles
+ * the rate at which we call SSO.
+ * <p>
+ * Instances are managed by ESITokenManager, see ESITokenManager.startRefreshScheduler.
+ */
+class ESITokenRefreshScheduler {
+  private static final Logger log = Logger.getLogger(ESITokenRefreshScheduler.class.getName());
+
+  // Queued refresh for a single token.  Only the entry currently recorded in "scheduled" for a
+  // given kid is live, older entries are skipped when they reach the head of the queue.
+  private static class Entry implements Delayed {
+    private final long kid;
+    private final long refreshAt;
+
+    Entry(long kid, long refreshAt) {
+      this.kid = kid;
+      this.refreshAt = refreshAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(refreshAt - OrbitalProperties.getCurrentTime(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(refreshAt, ((Entry) o).refreshAt);
+    }
+  }
+
+  private final long margin;
+  private final long retryDelay;
+  private final String eveClientID;
+  private final String eveSecretKey;
+  private final DelayQueue<Entry> queue = new DelayQueue<>();
+  private final Map<Long, Entry> scheduled = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor workers;
+  private final Thread dispatcher;
+  private volatile boolean running = true;
+
+  ESITokenRefreshScheduler(long margin, long retryDelay, int threads, String eveClientID, String eveSecretKey) {
+    this.margin = margin;
+    this.retryDelay = retryDelay;
+    this.eveClientID = eveClientID;
+    this.eveSecretKey = eveSecretKey;
+    workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                     new LinkedBlockingQueue<>(threads),
+                                     new DaemonThreadFactory("esi-token-refresh"),
+                                     new ThreadPoolExecutor.CallerRunsPolicy());
+    dispatcher = new DaemonThreadFactory("esi-token-refresh-dispatch").newThread(this::dispatch);
+  }
+
+  /**
+   * Load all refreshable tokens and start dispatching refreshes.
+   */
+  void start() {
+    List<ESIToken> keys = ESIToken.getAllRefreshableKeys();
+    if (keys != null) {
+      for (ESIToken next : keys) {
+        schedule(next.getKid(), next.getAccessTokenExpiry());
+      }
+    }
+    dispatcher.start();
+  }
+
+  /**
+   * Stop dispatching refreshes.  Refreshes already in progress are allowed to complete.
+   */
+  void stop() {
+    running = false;
+    dispatcher.interrupt();
+    workers.shutdown();
+    queue.clear();
+    scheduled.clear();
+  }
+
+  /**
+   * Schedule (or reschedule) a refresh for the given token.  Any previously scheduled refresh
+   * for the token is superseded.
+   *
+   * @param kid               the ID of the token to refresh.
+   * @param accessTokenExpiry the expiry time (millis UTC) of the token's current access token.
+   */
+  void schedule(long kid, long accessTokenExpiry) {
+    queueAt(kid, accessTokenExpiry - margin);
+  }
+
+  /**
+   * Remove any scheduled refresh for the given token.
+   *
+   * @param kid the ID of the token to unschedule.
+   */
+  void unschedule(long kid) {
+    scheduled.remove(kid);
+  }
+
+  private void queueAt(long kid, long refreshAt) {
+    if (!running) return;
+    Entry entry = new Entry(kid, refreshAt);
+    scheduled.put(kid, entry);
+    queue.put(entry);
+  }
+
+  private void dispatch() {
+    while (running) {
+      try {
+        final Entry next = queue.take();
+        if (scheduled.get(next.kid) != next) continue;
+        workers.execute(() -> refresh(next));
+      } catch (InterruptedException e) {
+        // We've been told to exit, so exit
+        return;
+      } catch (Throwable e) {
+        // Catch everything but log it
+        log.log(Level.WARNING, "caught error in token refresh dispatch loop (ignoring)", e);
+      }
+    }
+  }
+
+  private void refresh(Entry entry) {
+    if (!running || !scheduled.remove(entry.kid, entry)) return;
+    try {
+      ESITokenManager.refreshToken(entry.kid, margin, eveClientID, eveSecretKey);
+    } catch (IOException e) {
+      log.log(Level.FINE, "Background refresh failed for key: " + entry.kid, e);
+    }
+    // Reschedule based on the stored token.  Tokens which have been deleted or revoked drop
+    // out of the schedule until they are re-authenticated.
+    ESIToken key = ESIToken.getKeyByID(entry.kid);
+    if (key == null || key.getRefreshToken() == null || key.getRefreshToken()
+                                                           .trim()
+                                                           .isEmpty())
+      return;
+    long refreshAt = key.getAccessTokenExpiry() - margin;
+    long now = OrbitalProperties.getCurrentTime();
+    // If the token still needs refreshing then the refresh failed, back off before trying again
+    queueAt(entry.kid, refreshAt <= now ? now + retryDelay : refreshAt);
+  }
+
+}
@@ -0,0 +1,24 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+
+/**
+ * Exchanges a refresh token for a new access token.  The default implementation calls EVE SSO
+ * through EVEAuthHandler.doRefresh.  Alternate implementations can be installed with
+ * ESITokenManager.setTokenRefresher, for example to run against a local stub.
+ */
+public interface ESITokenRefresher {
+
+  /**
+   * Refresh an access token.
+   *
+   * @param eveClientID  EVE SSO client ID.
+   * @param eveSecretKey EVE SSO secret key.
+   * @param refreshToken the refresh token to exchange.
+   * @return the new access token.
+   * @throws Exception if the refresh fails.  Revoked tokens are reported by throwing an
+   *                   OAuth2AccessTokenErrorResponse with error code invalid_grant.
+   */
+  OAuth2AccessToken refresh(String eveClientID, String eveSecretKey, String refreshToken) throws Exception;
+
+}
@@ -0,0 +1,134 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import javax.persistence.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Normalized copy of the scopes granted to each ESIToken, one row per (token, scope).  ESIToken stores
+ * its scopes as a single space delimited string.  This table exists so that we can find the tokens
+ * which grant a given scope with an index lookup.  Rows are maintained by ESIToken whenever a token
+ * is created, updated with new scopes, or deleted.
+ */
+@Entity
+@Table(
+    name = "esi_token_scope",
+    indexes = {
+        @Index(
+            name = "scopeIndex",
+            columnList = "scope, kid",
+            unique = true),
+        @Index(
+            name = "scopeKeyIndex",
+            columnList = "kid")
+    })
+@NamedQueries({
+    @NamedQuery(
+        name = "ESITokenScope.deleteByKey",
+        query = "DELETE FROM ESITokenScope c where c.kid = :kid")
+})
+public class ESITokenScope {
+
+  // Unique row ID
+  @Id
+  @GeneratedValue(
+      strategy = GenerationType.SEQUENCE,
+      generator = "ekdp_seq")
+  @SequenceGenerator(
+      name = "ekdp_seq",
+      initialValue = 100000,
+      allocationSize = 10,
+      sequenceName = "dp_sequence")
+  private long sid;
+
+  // Token which grants this scope
+  private long kid;
+
+  // Granted scope
+  private String scope;
+
+  public long getKid() {
+    return kid;
+  }
+
+  public String getScope() {
+    return scope;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    ESITokenScope that = (ESITokenScope) o;
+
+    if (sid != that.sid) return false;
+    if (kid != that.kid) return false;
+    return scope != null ? scope.equals(that.scope) : that.scope == null;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (sid ^ (sid >>> 32));
+    result = 31 * result + (int) (kid ^ (kid >>> 32));
+    result = 31 * result + (scope != null ? scope.hashCode() : 0);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "ESITokenScope{" +
+        "sid=" + sid +
+        ", kid=" + kid +
+        ", scope='" + scope + '\'' +
+        '}';
+  }
+
+  /**
+   * Split a space delimited scope string into distinct scopes.
+   *
+   * @param scopes space delimited scopes, may be null.
+   * @return the distinct scopes in order of first appearance.
+   */
+  static Set<String> parse(String scopes) {
+    Set<String> result = new LinkedHashSet<>();
+    if (scopes == null) return result;
+    for (String next : scopes.trim()
+                             .split("\\s+")) {
+      if (!next.isEmpty()) result.add(next);
+    }
+    return result;
+  }
+
+  /**
+   * Replace the scope rows for a token.  Must be called from within a transaction.
+   *
+   * @param kid    the token ID.
+   * @param scopes space delimited scopes granted to the token.
+   */
+  static void sync(long kid, String scopes) {
+    remove(kid);
+    EntityManager em = DataPlatformProvider.getFactory()
+                                           .getEntityManager();
+    for (String next : parse(scopes)) {
+      ESITokenScope row = new ESITokenScope();
+      row.kid = kid;
+      row.scope = next;
+      em.persist(row);
+    }
+  }
+
+  /**
+   * Remove the scope rows for a token.  Must be called from within a transaction.
+   *
+   * @param kid the token ID.
+   */
+  static void remove(long kid) {
+    DataPlatformProvider.getFactory()
+                        .getEntityManager()
+                        .createNamedQuery("ESITokenScope.deleteByKey")
+                        .setParameter("kid", kid)
+                        .executeUpdate();
+  }
+
+}
@@ -0,0 +1,45 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Storage for pending ESI token requests (i.e. OAuth state) between the start of an SSO login and
+ * the resulting callback.  Pending requests are short lived and are consumed exactly once.
+ * <p>
+ * The default store keeps requests in the database (see NewESIToken), which is required when the
+ * login and callback may be served by different processes.  Single node deployments can use the
+ * in-memory store instead.  See ESITokenManager.PROP_TEMP_TOKEN_STORE.
+ */
+public interface ESITokenStateStore {
+
+  /**
+   * Create and save a new pending request.
+   *
+   * @param userAccount the account which will own the new token.
+   * @param createTime  time (millis UTC) when the request was created.
+   * @param expiry      time (millis UTC) when the request expires.
+   * @param scopes      the scopes requested for the new token.
+   * @param existingKid the token being re-authenticated, or -1 for a new token.
+   * @return the new request including its state key, or null on error.
+   */
+  NewESIToken create(DataPlatformUserAccount userAccount, long createTime, long expiry, String scopes,
+                     long existingKid);
+
+  /**
+   * Remove and return the pending request with the given state key.
+   *
+   * @param stateKey the OAuth state key of the request.
+   * @return the request, or null if no request has this state key.
+   */
+  NewESIToken take(String stateKey);
+
+  /**
+   * Remove all requests which expire at or before the given time.
+   *
+   * @param limit     expiry limit (millis UTC).
+   * @param chunkSize maximum number of requests to remove at once.  Stores which must lock to remove
+   *                  requests should release their locks between chunks.  Must be at least 1.
+   * @return the number of requests removed.
+   * @throws IllegalArgumentException if chunkSize is less than 1.
+   */
+  long cleanExpired(long limit, int chunkSize);
+
+}
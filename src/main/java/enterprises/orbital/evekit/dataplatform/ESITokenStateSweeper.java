@@ -0,0 +1,96 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically removes expired pending token requests from the current ESITokenStateStore.
+ * Counters describing recent sweeps are available for monitoring.
+ * <p>
+ * Instances are managed by ESITokenManager, see ESITokenManager.init and ESITokenManager.shutdown.
+ */
+public class ESITokenStateSweeper {
+  private static final Logger log = Logger.getLogger(ESITokenStateSweeper.class.getName());
+
+  private final int chunkSize;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new DaemonThreadFactory("esi-token-sweeper"));
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong totalSwept = new AtomicLong();
+  private final AtomicLong lastSwept = new AtomicLong();
+  private final AtomicLong lastDuration = new AtomicLong();
+  private final AtomicLong totalDuration = new AtomicLong();
+
+  ESITokenStateSweeper(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  void start(long interval) {
+    executor.scheduleWithFixedDelay(this::sweep, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Run a single sweep.  Normally invoked on the sweeper's schedule.
+   */
+  public void sweep() {
+    try {
+      long start = System.nanoTime();
+      long swept = ESITokenManager.cleanExpiredState(OrbitalProperties.getCurrentTime(), chunkSize);
+      long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      runs.incrementAndGet();
+      totalSwept.addAndGet(swept);
+      lastSwept.set(swept);
+      lastDuration.set(duration);
+      totalDuration.addAndGet(duration);
+    } catch (Throwable e) {
+      // Catch everything but log it so future sweeps still run
+      log.log(Level.WARNING, "caught error in state cleanup (ignoring)", e);
+    }
+  }
+
+  /**
+   * @return number of completed sweeps.
+   */
+  public long getRuns() {
+    return runs.get();
+  }
+
+  /**
+   * @return number of requests removed over all sweeps.
+   */
+  public long getTotalSwept() {
+    return totalSwept.get();
+  }
+
+  /**
+   * @return number of requests removed by the most recent sweep.
+   */
+  public long getLastSwept() {
+    return lastSwept.get();
+  }
+
+  /**
+   * @return duration (milliseconds) of the most recent sweep.
+   */
+  public long getLastDuration() {
+    return lastDuration.get();
+  }
+
+  /**
+   * @return total duration (milliseconds) over all sweeps.
+   */
+  public long getTotalDuration() {
+    return totalDuration.get();
+  }
+
+}
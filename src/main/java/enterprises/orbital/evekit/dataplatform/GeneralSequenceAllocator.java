@@ -0,0 +1,227 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out unique sequence values from blocks reserved in dp_sequence.  Unlike GeneralSequenceNumber.create, which
+ * costs a transaction and an insert per value, a block of PROP_SEQUENCE_BLOCK_SIZE values is reserved in one short
+ * transaction and values are then handed out without locking.  When PROP_SEQUENCE_REFILL_THRESHOLD values remain in
+ * the current block the next block is reserved in the background, so callers normally never wait on the database.
+ * <p>
+ * Values are unique with respect to all other users of dp_sequence, including generated entity IDs, but are not
+ * backed by evekit_sequence rows.  Use this allocator for plain long columns.  Values are not handed out in order,
+ * and values reserved but not handed out before shutdown are lost.
+ */
+public class GeneralSequenceAllocator {
+  private static final Logger log = Logger.getLogger(GeneralSequenceAllocator.class.getName());
+
+  // Number of values reserved per round trip, rounded up to a multiple of SEQUENCE_INCREMENT
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SEQUENCE_BLOCK_SIZE = "enterprises.orbital.sequence.blockSize";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SEQUENCE_BLOCK_SIZE = 100;
+  // Number of values left in the current block which triggers a background reservation of the next block
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_SEQUENCE_REFILL_THRESHOLD = "enterprises.orbital.sequence.refillThreshold";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_SEQUENCE_REFILL_THRESHOLD = 50;
+
+  // Sequence shared with entity ID generation.  Each read reserves SEQUENCE_INCREMENT values ending at the value
+  // read, which is how Hibernate's pooled optimizer interprets the sequence.  The increment must therefore match
+  // the allocationSize of the ekdp_seq generator.
+  static final String SEQUENCE_NAME = "dp_sequence";
+  static final int SEQUENCE_INCREMENT = 10;
+
+  // A reserved block.  Values are made up of SEQUENCE_INCREMENT sized ranges, each ending at an entry of hi.
+  private static final class Block {
+    private final long[] hi;
+    private final AtomicLong next = new AtomicLong();
+
+    private Block(long[] hi) {
+      this.hi = hi;
+    }
+
+    private long size() {
+      return (long) hi.length * SEQUENCE_INCREMENT;
+    }
+
+    private long value(long index) {
+      return hi[(int) (index / SEQUENCE_INCREMENT)] - SEQUENCE_INCREMENT + 1 + index % SEQUENCE_INCREMENT;
+    }
+  }
+
+  private final int ranges;
+  private final long refillIndex;
+  private volatile Block current = new Block(new long[0]);
+  private final AtomicReference<Block> spare = new AtomicReference<>();
+  // Held while replacing an exhausted block
+  private final ReentrantLock advanceLock = new ReentrantLock();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new DaemonThreadFactory("sequence-allocator"));
+  private final LongAdder issued = new LongAdder();
+  private final LongAdder reserved = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  public GeneralSequenceAllocator() {
+    this(OrbitalProperties.getIntGlobalProperty(PROP_SEQUENCE_BLOCK_SIZE, DEF_SEQUENCE_BLOCK_SIZE),
+         OrbitalProperties.getIntGlobalProperty(PROP_SEQUENCE_REFILL_THRESHOLD, DEF_SEQUENCE_REFILL_THRESHOLD));
+  }
+
+  public GeneralSequenceAllocator(int blockSize, int refillThreshold) {
+    ranges = Math.max(1, (blockSize + SEQUENCE_INCREMENT - 1) / SEQUENCE_INCREMENT);
+    refillIndex = Math.max(0, (long) ranges * SEQUENCE_INCREMENT - refillThreshold);
+  }
+
+  /**
+   * Stop background reservations.  Values not yet handed out are lost.
+   */
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Return the next unique value.  This only waits on the database if the current block is exhausted before the
+   * background reservation of the next block completes.
+   *
+   * @return a unique value, or -1 if a new block could not be reserved.
+   */
+  public long next() {
+    while (true) {
+      Block block = current;
+      long index = block.next.getAndIncrement();
+      if (index < block.size()) {
+        // Exactly one caller sees each index, so at most one refill is requested per block
+        if (index == refillIndex) refill();
+        issued.increment();
+        return block.value(index);
+      }
+      if (!advance(block)) return -1;
+    }
+  }
+
+  // Replace an exhausted block with the spare, or reserve a new block if no spare is ready
+  private boolean advance(Block exhausted) {
+    advanceLock.lock();
+    try {
+      // Another caller already replaced this block
+      if (current != exhausted) return true;
+      Block next = spare.getAndSet(null);
+      if (next == null) {
+        waits.increment();
+        next = reserve();
+        if (next == null) return false;
+      }
+      current = next;
+      return true;
+    } finally {
+      advanceLock.unlock();
+    }
+  }
+
+  private void refill() {
+    if (!refilling.compareAndSet(false, true)) return;
+    try {
+      executor.execute(() -> {
+        try {
+          if (spare.get() == null) {
+            Block next = reserve();
+            if (next != null) spare.compareAndSet(null, next);
+          }
+        } finally {
+          refilling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Allocator is stopped, the next block will be reserved when this one runs out
+      refilling.set(false);
+    }
+  }
+
+  private Block reserve() {
+    try {
+      long[] hi = DataPlatformProvider.getFactory().runTransaction(() -> {
+        EntityManager em = DataPlatformProvider.getFactory().getEntityManager();
+        Dialect dialect = em.getEntityManagerFactory()
+                            .unwrap(SessionFactoryImplementor.class)
+                            .getJdbcServices()
+                            .getDialect();
+        long[] result = new long[ranges];
+        if (dialect.supportsSequences()) {
+          Query nextVal = em.createNativeQuery(dialect.getSequenceNextValString(SEQUENCE_NAME));
+          for (int i = 0; i < ranges; i++) {
+            result[i] = ((Number) nextVal.getSingleResult()).longValue();
+          }
+        } else {
+          // Sequence is emulated with a single row table holding the next value to read.  Claim all ranges with
+          // one update, retrying if another allocator moved the value first.  The locking read sees the latest
+          // committed value regardless of isolation level.
+          Query read = em.createNativeQuery("SELECT next_val FROM " + SEQUENCE_NAME + dialect.getForUpdateString());
+          Query claim = em.createNativeQuery(
+              "UPDATE " + SEQUENCE_NAME + " SET next_val = ? WHERE next_val = ?");
+          long first;
+          do {
+            first = ((Number) read.getSingleResult()).longValue();
+            claim.setParameter(1, first + (long) ranges * SEQUENCE_INCREMENT);
+            claim.setParameter(2, first);
+          } while (claim.executeUpdate() == 0);
+          for (int i = 0; i < ranges; i++) {
+            result[i] = first + (long) i * SEQUENCE_INCREMENT;
+          }
+        }
+        return result;
+      });
+      reserved.add(hi.length * SEQUENCE_INCREMENT);
+      return new Block(hi);
+    } catch (Exception e) {
+      failures.increment();
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * @return number of values handed out.
+   */
+  public long getIssued() {
+    return issued.sum();
+  }
+
+  /**
+   * @return number of values reserved from the database.
+   */
+  public long getReserved() {
+    return reserved.sum();
+  }
+
+  /**
+   * @return number of times a caller waited for a block to be reserved.
+   */
+  public long getWaits() {
+    return waits.sum();
+  }
+
+  /**
+   * @return number of failed block reservations.
+   */
+  public long getFailures() {
+    return failures.sum();
+  }
+
+}
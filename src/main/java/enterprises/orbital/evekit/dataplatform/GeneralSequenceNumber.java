@@ -9,7 +9,8 @@ import java.util.logging.Logger;
 /**
  * This class is used to provide unique sequence values for non-ID columns in other tables. A one-to-one relation in the referring table is all that is needed
  * to use the value, then extraction via the getter to retrieve the value. Not great given the number of selects, but it's hard to avoid this currently with
- * Hibernate and still be general across many databases.
+ * Hibernate and still be general across many databases.  Where a plain long column will do, GeneralSequenceAllocator hands out values from the same
+ * sequence without a transaction per value.
  */
 @Entity
 @Table(
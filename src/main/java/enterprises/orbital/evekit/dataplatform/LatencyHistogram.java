@@ -0,0 +1,105 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets in the style of HdrHistogram.  Each power of two
+ * range is split into 16 linear sub-buckets which bounds the relative error of reported percentiles to
+ * roughly 6%.  Recording a value is a handful of atomic increments and never allocates, so histograms
+ * are safe to update on hot paths.  Readers see a weakly consistent view which is fine for monitoring.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos latency in nanoseconds.  Negative values are recorded as zero.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(index(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long current;
+    while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+      // retry
+    }
+  }
+
+  /**
+   * @return number of recorded values.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return mean of recorded values in milliseconds, or 0 if no values have been recorded.
+   */
+  public double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : toMillis(total.get()) / n;
+  }
+
+  /**
+   * @return largest recorded value in milliseconds.
+   */
+  public double getMaxMillis() {
+    return toMillis(max.get());
+  }
+
+  /**
+   * Estimate a percentile of the recorded values.
+   *
+   * @param percentile the percentile to estimate, between 0 and 100.
+   * @return the estimated value in milliseconds, or 0 if no values have been recorded.
+   */
+  public double getPercentileMillis(double percentile) {
+    long n = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) return toMillis(Math.min(upperBound(i), max.get()));
+    }
+    return getMaxMillis();
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS);
+  }
+
+  // Values below SUB_BUCKETS map to their own bucket.  Larger values map to one of SUB_BUCKETS linear
+  // sub-buckets within their power of two range.
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  // Largest value which maps to the given bucket
+  private static long upperBound(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long lower = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+}
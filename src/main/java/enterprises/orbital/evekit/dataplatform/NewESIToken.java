@@ -1,11 +1,11 @@
 package enterprises.orbital.evekit.dataplatform;
 
-import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.base.Stamper;
 
 import javax.persistence.*;
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,7 +26,10 @@ import java.util.logging.Logger;
         @Index(
             name = "credIndex",
             columnList = "stateKey",
-            unique = true)
+            unique = true),
+        @Index(
+            name = "expiryIndex",
+            columnList = "expiry")
     })
 @NamedQueries({
     @NamedQuery(
@@ -36,12 +39,18 @@ import java.util.logging.Logger;
         name = "NewESIToken.findByCred",
         query = "SELECT c FROM NewESIToken c where c.stateKey = :cred"),
     @NamedQuery(
-        name = "NewESIToken.getExpired",
-        query = "SELECT c FROM NewESIToken c where c.expiry <= :expiry")
+        name = "NewESIToken.getExpiredIDs",
+        query = "SELECT c.kid FROM NewESIToken c where c.expiry <= :expiry"),
+    @NamedQuery(
+        name = "NewESIToken.deleteByIDs",
+        query = "DELETE FROM NewESIToken c where c.kid in :kids")
 })
 public class NewESIToken {
   protected static final Logger log = Logger.getLogger(NewESIToken.class.getName());
 
+  // State keys must not be guessable, so seeds come from a secure source rather than the clock
+  private static final SecureRandom random = new SecureRandom();
+
   protected static ThreadLocal<ByteBuffer> assembly = new ThreadLocal<ByteBuffer>() {
     @Override
     protected ByteBuffer initialValue() {
@@ -169,50 +178,43 @@ public class NewESIToken {
         '}';
   }
 
+  /**
+   * Construct a new pending token with a freshly generated state key.  The result is not persisted.
+   *
+   * @param userAccount the account which will own the new token.
+   * @param createTime  time (millis UTC) when the request was created.
+   * @param expiry      time (millis UTC) when the request expires.
+   * @param scopes      the scopes requested for the new token.
+   * @param existingKid the token being re-authenticated, or -1 for a new token.
+   * @return the new pending token.
+   */
+  static NewESIToken newKey(final DataPlatformUserAccount userAccount, final long createTime,
+                            final long expiry, final String scopes, final long existingKid) {
+    NewESIToken result = new NewESIToken();
+    result.userAccount = userAccount;
+    result.createTime = createTime;
+    result.existingKid = existingKid;
+    result.expiry = expiry;
+    result.scopes = scopes;
+    result.randomSeed = random.nextLong();
+    result.stateKey = generateHash(result, random.nextLong());
+    return result;
+  }
+
   public static NewESIToken createKey(final DataPlatformUserAccount userAccount, final long createTime,
                                       final long expiry,
                                       final String scopes, final long existingKid) {
-    NewESIToken newKey = null;
     try {
-      // Generate and save the initial key
-      newKey = DataPlatformProvider.getFactory()
-                                   .runTransaction(() -> {
-                                     long seed = new Random(OrbitalProperties.getCurrentTime()).nextLong();
-                                     NewESIToken result = new NewESIToken();
-                                     result.userAccount = userAccount;
-                                     result.createTime = createTime;
-                                     result.existingKid = existingKid;
-                                     result.expiry = expiry;
-                                     result.scopes = scopes;
-                                     result.randomSeed = seed;
-                                     return DataPlatformProvider.getFactory()
-                                                                .getEntityManager()
-                                                                .merge(result);
-                                   });
-      // If successful, then set the hash on the key and return it.  We need this in the
-      // database since this is what we'll select when the OAuth pass completes.
-      final NewESIToken tempKey = newKey;
-      newKey = DataPlatformProvider.getFactory()
-                                   .runTransaction(() -> {
-                                     TypedQuery<NewESIToken> getter = DataPlatformProvider.getFactory()
-                                                                                          .getEntityManager()
-                                                                                          .createNamedQuery("NewESIToken.findByID", NewESIToken.class);
-                                     getter.setParameter("kid", tempKey.kid);
-                                     try {
-                                       NewESIToken result = getter.getSingleResult();
-                                       result.stateKey = generateHash(result);
-                                       return DataPlatformProvider.getFactory()
-                                                                  .getEntityManager()
-                                                                  .merge(result);
-                                     } catch (NoResultException e) {
-                                       return null;
-                                     }
-                                   });
-
+      // The state key is generated before the insert so we only need to write the key once
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> DataPlatformProvider.getFactory()
+                                                                           .getEntityManager()
+                                                                           .merge(newKey(userAccount, createTime, expiry,
+                                                                                         scopes, existingKid)));
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
-    return newKey;
+    return null;
   }
 
   public static NewESIToken getKeyByID(final long kid) {
@@ -255,23 +257,73 @@ public class NewESIToken {
     return null;
   }
 
-  public static void cleanExpired(final long limit) {
+  /**
+   * Retrieve and remove the key with the given state in a single transaction.
+   *
+   * @param state the OAuth state of the key to remove.
+   * @return the removed key, or null if no key has this state.
+   */
+  public static NewESIToken takeKeyByState(final String state) {
     try {
-      DataPlatformProvider.getFactory()
-                          .runTransaction(() -> {
-                            TypedQuery<NewESIToken> getter = DataPlatformProvider.getFactory()
-                                                                                 .getEntityManager()
-                                                                                 .createNamedQuery("NewESIToken.getExpired", NewESIToken.class);
-                            getter.setParameter("expiry", limit);
-                            for (NewESIToken next : getter.getResultList()) {
-                              DataPlatformProvider.getFactory()
-                                                  .getEntityManager()
-                                                  .remove(next);
-                            }
-                          });
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   TypedQuery<NewESIToken> getter = DataPlatformProvider.getFactory()
+                                                                                        .getEntityManager()
+                                                                                        .createNamedQuery("NewESIToken.findByCred", NewESIToken.class);
+                                   getter.setParameter("cred", state);
+                                   try {
+                                     NewESIToken result = getter.getSingleResult();
+                                     DataPlatformProvider.getFactory()
+                                                         .getEntityManager()
+                                                         .remove(result);
+                                     return result;
+                                   } catch (NoResultException e) {
+                                     return null;
+                                   }
+                                 });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Remove all keys which expire at or before the given time.  Keys are deleted in bulk in chunks of
+   * at most chunkSize keys, each in its own transaction, so that a large backlog never holds locks
+   * for long.
+   *
+   * @param limit     expiry limit (millis UTC).
+   * @param chunkSize maximum number of keys to remove per transaction.
+   * @return the number of keys removed.
+   * @throws IllegalArgumentException if chunkSize is less than 1.
+   */
+  public static long cleanExpired(final long limit, final int chunkSize) {
+    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1: " + chunkSize);
+    long total = 0;
+    try {
+      while (true) {
+        int removed = DataPlatformProvider.getFactory()
+                                          .runTransaction(() -> {
+                                            TypedQuery<Long> getter = DataPlatformProvider.getFactory()
+                                                                                          .getEntityManager()
+                                                                                          .createNamedQuery("NewESIToken.getExpiredIDs", Long.class);
+                                            getter.setParameter("expiry", limit);
+                                            getter.setMaxResults(chunkSize);
+                                            List<Long> kids = getter.getResultList();
+                                            if (kids.isEmpty()) return 0;
+                                            return DataPlatformProvider.getFactory()
+                                                                       .getEntityManager()
+                                                                       .createNamedQuery("NewESIToken.deleteByIDs")
+                                                                       .setParameter("kids", kids)
+                                                                       .executeUpdate();
+                                          });
+        total += removed;
+        if (removed < chunkSize) break;
+      }
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
+    return total;
   }
 
   public static boolean deleteKey(final long kid) {
@@ -290,12 +342,13 @@ public class NewESIToken {
     return false;
   }
 
-  private static String generateHash(NewESIToken ref) {
+  private static String generateHash(NewESIToken ref, long salt) {
     ByteBuffer assemble = assembly.get();
     assemble.clear();
 
-    assemble.putLong(ref.kid);
+    assemble.putLong(ref.getCreateTime());
     assemble.putLong(ref.getRandomSeed());
+    assemble.putLong(salt);
     assemble.limit(assemble.position());
     assemble.rewind();
 
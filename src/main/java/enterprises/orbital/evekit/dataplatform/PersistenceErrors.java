@@ -0,0 +1,76 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.exception.LockAcquisitionException;
+
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.QueryTimeoutException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientException;
+
+/**
+ * Classifies persistence failures so callers can decide whether a failed transaction is worth retrying.
+ */
+final class PersistenceErrors {
+
+  private PersistenceErrors() {}
+
+  /**
+   * Check whether a failure was caused by a conflict with a concurrent transaction: a unique key violated by a
+   * racing insert, a deadlock, or a lock which could not be acquired.  Retrying the whole transaction normally
+   * succeeds.
+   *
+   * @param e the failure, usually as thrown by runTransaction.
+   * @return true if any cause of the failure is a conflict.
+   */
+  static boolean isConflict(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+      // Class 23 is an integrity constraint violation
+      if (isLockFailure(cause) || cause instanceof SQLIntegrityConstraintViolationException || hasState(cause, "23"))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check whether a failure is transient, i.e. the same write may succeed later: a lock failure, a timeout, or
+   * a lost or unavailable connection.  Failures caused by the data itself, such as constraint violations, are
+   * not transient.
+   *
+   * @param e the failure, usually as thrown by runTransaction.
+   * @return true if any cause of the failure is transient.
+   */
+  static boolean isTransient(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+      // Class 08 is a connection exception
+      if (isLockFailure(cause) ||
+          cause instanceof JDBCConnectionException ||
+          cause instanceof QueryTimeoutException ||
+          cause instanceof SQLTransientException ||
+          cause instanceof SQLRecoverableException ||
+          hasState(cause, "08"))
+        return true;
+    }
+    return false;
+  }
+
+  // A deadlock or a lock which could not be acquired.  Class 40 is a rolled back transaction.
+  private static boolean isLockFailure(Throwable cause) {
+    return cause instanceof PessimisticLockException ||
+        cause instanceof LockTimeoutException ||
+        cause instanceof LockAcquisitionException ||
+        cause instanceof SQLTransactionRollbackException ||
+        hasState(cause, "40");
+  }
+
+  private static boolean hasState(Throwable cause, String stateClass) {
+    if (!(cause instanceof SQLException)) return false;
+    String state = ((SQLException) cause).getSQLState();
+    return state != null && state.startsWith(stateClass);
+  }
+
+}
@@ -0,0 +1,154 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker guarding calls to EVE SSO.  The breaker tracks the outcome of the most recent calls
+ * in a fixed size window:
+ *
+ * <ul>
+ * <li>CLOSED: calls are allowed.  If at least minCalls outcomes are recorded and the failure rate
+ * reaches the threshold, the breaker opens.</li>
+ * <li>OPEN: calls are rejected until the open delay elapses, then the breaker moves to HALF_OPEN.</li>
+ * <li>HALF_OPEN: a single probe call is allowed.  Success closes the breaker, failure re-opens it.  A probe
+ * which reports no outcome within the probe timeout is treated as lost and another probe is allowed.</li>
+ * </ul>
+ *
+ * The open delay doubles each time the breaker re-opens without an intervening success, up to a maximum,
+ * and is jittered so that separate processes do not probe SSO in lock step.
+ */
+class SSOCircuitBreaker {
+  private static final Logger log = Logger.getLogger(SSOCircuitBreaker.class.getName());
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int minCalls;
+  private final double failureThreshold;
+  private final long openDelay;
+  private final long maxOpenDelay;
+  private final long probeTimeout;
+  // Ring buffer of recent outcomes, true for failure
+  private final boolean[] window;
+  private int windowNext;
+  private int windowCount;
+  private int windowFailures;
+  private State state = State.CLOSED;
+  private long openUntil;
+  private int consecutiveOpens;
+  private boolean probeInFlight;
+  private long probeStarted;
+
+  SSOCircuitBreaker(int windowSize, int minCalls, double failureThreshold, long openDelay, long maxOpenDelay,
+                    long probeTimeout) {
+    this.window = new boolean[windowSize];
+    this.minCalls = Math.min(minCalls, windowSize);
+    this.failureThreshold = failureThreshold;
+    this.openDelay = openDelay;
+    this.maxOpenDelay = maxOpenDelay;
+    this.probeTimeout = probeTimeout;
+  }
+
+  /**
+   * Check whether a call may proceed.  Callers which are allowed through must report the outcome with
+   * recordSuccess or recordFailure, or recordAbandoned if the call is never made.
+   *
+   * @return true if the call may proceed, false if the caller should fail fast.
+   */
+  synchronized boolean allowRequest() {
+    long now = OrbitalProperties.getCurrentTime();
+    switch (state) {
+      case OPEN:
+        if (now < openUntil) return false;
+        state = State.HALF_OPEN;
+        startProbe(now);
+        log.info("SSO circuit half open, probing");
+        return true;
+
+      case HALF_OPEN:
+        if (probeInFlight && now - probeStarted < probeTimeout) return false;
+        if (probeInFlight) log.warning("SSO circuit probe timed out, probing again");
+        startProbe(now);
+        return true;
+
+      default:
+        return true;
+    }
+  }
+
+  synchronized void recordSuccess() {
+    if (state == State.HALF_OPEN) {
+      log.info("SSO circuit closed");
+      state = State.CLOSED;
+      probeInFlight = false;
+      consecutiveOpens = 0;
+      resetWindow();
+      return;
+    }
+    record(false);
+  }
+
+  synchronized void recordFailure() {
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      open();
+      return;
+    }
+    record(true);
+    if (state == State.CLOSED && windowCount >= minCalls && windowFailures >= failureThreshold * windowCount) open();
+  }
+
+  /**
+   * Report that a call allowed by allowRequest was never made.  If the call was the half open probe then
+   * another probe is allowed.
+   */
+  synchronized void recordAbandoned() {
+    if (state == State.HALF_OPEN) probeInFlight = false;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  private void startProbe(long now) {
+    probeInFlight = true;
+    probeStarted = now;
+  }
+
+  private void record(boolean failure) {
+    if (windowCount == window.length) {
+      if (window[windowNext]) windowFailures--;
+    } else {
+      windowCount++;
+    }
+    window[windowNext] = failure;
+    if (failure) windowFailures++;
+    windowNext = (windowNext + 1) % window.length;
+  }
+
+  private void resetWindow() {
+    windowNext = 0;
+    windowCount = 0;
+    windowFailures = 0;
+  }
+
+  private void open() {
+    // Exponential backoff capped at the maximum delay, jittered into the upper half of the interval
+    long delay = openDelay << Math.min(consecutiveOpens, 20);
+    if (delay <= 0 || delay > maxOpenDelay) delay = maxOpenDelay;
+    delay = delay / 2 + ThreadLocalRandom.current()
+                                         .nextLong(delay / 2 + 1);
+    consecutiveOpens++;
+    state = State.OPEN;
+    openUntil = OrbitalProperties.getCurrentTime() + delay;
+    resetWindow();
+    log.warning("SSO circuit open for " + delay + " ms");
+  }
+
+}
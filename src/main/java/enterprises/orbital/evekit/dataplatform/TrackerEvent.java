@@ -0,0 +1,49 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Tracker lifecycle event delivered to TrackerEventListener instances.  The attached tracker is a
+ * detached copy of the tracker as of the committed change.
+ */
+public class TrackerEvent {
+
+  public enum Type {
+    CREATED, // tracker was created
+    STARTED, // tracker start time was set
+    FINISHED // tracker end time was set
+  }
+
+  private final Type type;
+  private final DataSourceUpdateTracker tracker;
+  private final long time;
+
+  TrackerEvent(Type type, DataSourceUpdateTracker tracker, long time) {
+    this.type = type;
+    this.tracker = tracker;
+    this.time = time;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public DataSourceUpdateTracker getTracker() {
+    return tracker;
+  }
+
+  /**
+   * @return time (milliseconds UTC) when the event was raised.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  @Override
+  public String toString() {
+    return "TrackerEvent{" +
+        "type=" + type +
+        ", tracker=" + tracker +
+        ", time=" + time +
+        '}';
+  }
+
+}
@@ -0,0 +1,124 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers tracker events to registered listeners.  Each listener has its own bounded queue.  Raising
+ * an event never blocks: if a listener's queue is full the event is dropped for that listener and
+ * counted.  A queue is drained by at most one delivery thread at a time so each listener sees events
+ * in the order they were raised.
+ */
+class TrackerEventDispatcher {
+  private static final Logger log = Logger.getLogger(TrackerEventDispatcher.class.getName());
+
+  // Maximum number of undelivered events per listener
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_EVENT_QUEUE = "enterprises.orbital.tracker.eventQueueSize";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TRACKER_EVENT_QUEUE = 1000;
+  // Number of delivery threads shared by all listeners
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_EVENT_THREADS = "enterprises.orbital.tracker.eventThreads";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TRACKER_EVENT_THREADS = 2;
+
+  private final class Subscription implements Runnable {
+    private final TrackerEventListener listener;
+    private final Long sid;
+    private final String dtype;
+    private final Set<TrackerEvent.Type> types;
+    private final BlockingQueue<TrackerEvent> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private Subscription(TrackerEventListener listener, Long sid, String dtype, Set<TrackerEvent.Type> types,
+                         int queueSize) {
+      this.listener = listener;
+      this.sid = sid;
+      this.dtype = dtype;
+      this.types = types;
+      this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    private boolean matches(TrackerEvent event) {
+      DataSourceUpdateTracker tracker = event.getTracker();
+      return types.contains(event.getType()) &&
+          (sid == null || sid == tracker.getSource()
+                                        .getSid()) &&
+          (dtype == null || dtype.equals(tracker.getDataSourceType()));
+    }
+
+    private void offer(TrackerEvent event) {
+      if (!queue.offer(event)) {
+        dropped.increment();
+        return;
+      }
+      if (draining.compareAndSet(false, true)) delivery.execute(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        TrackerEvent next;
+        while ((next = queue.poll()) != null) {
+          try {
+            listener.onEvent(next);
+          } catch (Throwable e) {
+            // Catch everything but log it so one bad event does not stop delivery
+            log.log(Level.WARNING, "caught error in tracker event listener (ignoring)", e);
+          }
+        }
+        draining.set(false);
+        // An event may have arrived after we emptied the queue but before we cleared the flag
+        if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+      }
+    }
+  }
+
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final ExecutorService delivery = Executors.newFixedThreadPool(
+      OrbitalProperties.getIntGlobalProperty(PROP_TRACKER_EVENT_THREADS, DEF_TRACKER_EVENT_THREADS),
+      new DaemonThreadFactory("tracker-events"));
+  private final LongAdder dropped = new LongAdder();
+
+  void addListener(TrackerEventListener listener, Long sid, String dtype, Set<TrackerEvent.Type> types) {
+    Set<TrackerEvent.Type> copy = EnumSet.noneOf(TrackerEvent.Type.class);
+    copy.addAll(types);
+    subscriptions.add(new Subscription(listener, sid, dtype, copy,
+                                       OrbitalProperties.getIntGlobalProperty(PROP_TRACKER_EVENT_QUEUE,
+                                                                              DEF_TRACKER_EVENT_QUEUE)));
+  }
+
+  void removeListener(TrackerEventListener listener) {
+    subscriptions.removeIf(next -> next.listener == listener);
+  }
+
+  boolean hasListeners() {
+    return !subscriptions.isEmpty();
+  }
+
+  void fire(List<TrackerEvent> events) {
+    for (TrackerEvent event : events) {
+      for (Subscription next : subscriptions) {
+        if (next.matches(event)) next.offer(event);
+      }
+    }
+  }
+
+  long getDropped() {
+    return dropped.sum();
+  }
+
+}
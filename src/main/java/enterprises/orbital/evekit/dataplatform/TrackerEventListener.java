@@ -0,0 +1,12 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Receives tracker lifecycle events.  Register with DataSourceUpdateTracker.addListener.  Events are
+ * delivered asynchronously and in order on a shared pool of delivery threads, so listeners should avoid
+ * blocking for long.  A listener which falls too far behind loses events rather than slowing down writers.
+ */
+public interface TrackerEventListener {
+
+  void onEvent(TrackerEvent event);
+
+}
@@ -0,0 +1,139 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically finishes trackers abandoned by crashed collectors.  Trackers which were started more than
+ * PROP_TRACKER_STALE_TIMEOUT milliseconds ago and never finished are marked ERROR in batches, each in its
+ * own transaction.  Trackers which were never started have no start time to judge and are left alone.
+ * Counters describing recent runs are published over JMX.
+ */
+public class TrackerReaper implements TrackerReaperMBean {
+  private static final Logger log = Logger.getLogger(TrackerReaper.class.getName());
+
+  // Age (milliseconds) after which an unfinished tracker is considered abandoned
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_STALE_TIMEOUT = "enterprises.orbital.tracker.staleTimeout";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TRACKER_STALE_TIMEOUT = TimeUnit.MILLISECONDS.convert(6, TimeUnit.HOURS);
+  // Interval (milliseconds) between reaper runs
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_REAP_INTERVAL = "enterprises.orbital.tracker.reapInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TRACKER_REAP_INTERVAL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  // Number of trackers finished per transaction
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_REAP_BATCH = "enterprises.orbital.tracker.reapBatch";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TRACKER_REAP_BATCH = 100;
+
+  private final long timeout;
+  private final int batchSize;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new DaemonThreadFactory("tracker-reaper"));
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong totalReaped = new AtomicLong();
+  private final AtomicLong lastReaped = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final LatencyHistogram scanTime = new LatencyHistogram();
+
+  public TrackerReaper() {
+    this(OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_STALE_TIMEOUT, DEF_TRACKER_STALE_TIMEOUT),
+         OrbitalProperties.getIntGlobalProperty(PROP_TRACKER_REAP_BATCH, DEF_TRACKER_REAP_BATCH));
+  }
+
+  public TrackerReaper(long timeout, int batchSize) {
+    this.timeout = timeout;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Start reaping every PROP_TRACKER_REAP_INTERVAL milliseconds and publish metrics over JMX.
+   */
+  public void start() {
+    long interval = OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_REAP_INTERVAL, DEF_TRACKER_REAP_INTERVAL);
+    executor.scheduleWithFixedDelay(this::reap, 0, interval, TimeUnit.MILLISECONDS);
+    DataPlatformMetrics.register("TrackerReaper", this);
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Run a single reaper pass.  Normally invoked on the reaper's schedule.
+   *
+   * @return number of trackers finished.
+   */
+  public long reap() {
+    long reaped = 0;
+    try {
+      long cutoff = OrbitalProperties.getCurrentTime() - timeout;
+      String detail = "Abandoned: not finished within " + timeout + " ms of start";
+      int count;
+      do {
+        long start = System.nanoTime();
+        count = DataSourceUpdateTracker.reapStale(cutoff, batchSize, detail);
+        scanTime.record(System.nanoTime() - start);
+        if (count < 0) {
+          failures.incrementAndGet();
+          break;
+        }
+        reaped += count;
+      } while (count == batchSize && !Thread.currentThread()
+                                            .isInterrupted());
+      if (reaped > 0) log.info("Finished " + reaped + " abandoned trackers");
+    } catch (Throwable e) {
+      // Catch everything but log it so future passes still run
+      failures.incrementAndGet();
+      log.log(Level.WARNING, "caught error reaping trackers (ignoring)", e);
+    }
+    runs.incrementAndGet();
+    totalReaped.addAndGet(reaped);
+    lastReaped.set(reaped);
+    return reaped;
+  }
+
+  @Override
+  public long getRuns() {
+    return runs.get();
+  }
+
+  @Override
+  public long getTotalReaped() {
+    return totalReaped.get();
+  }
+
+  @Override
+  public long getLastReaped() {
+    return lastReaped.get();
+  }
+
+  @Override
+  public long getFailures() {
+    return failures.get();
+  }
+
+  @Override
+  public double getScanMeanMillis() {
+    return scanTime.getMeanMillis();
+  }
+
+  @Override
+  public double getScanP99Millis() {
+    return scanTime.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getScanMaxMillis() {
+    return scanTime.getMaxMillis();
+  }
+
+}
@@ -0,0 +1,22 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * JMX view of TrackerReaper.
+ */
+public interface TrackerReaperMBean {
+
+  long getRuns();
+
+  long getTotalReaped();
+
+  long getLastReaped();
+
+  long getFailures();
+
+  double getScanMeanMillis();
+
+  double getScanP99Millis();
+
+  double getScanMaxMillis();
+
+}
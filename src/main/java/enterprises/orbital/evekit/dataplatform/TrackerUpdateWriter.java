@@ -0,0 +1,276 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind buffer for tracker progress updates.  Queued updates to the same tracker are coalesced so
+ * that only the most recent state is written.  Pending updates are written in one transaction every
+ * PROP_TRACKER_WRITE_INTERVAL milliseconds, or sooner when PROP_TRACKER_WRITE_THRESHOLD trackers are pending.
+ * <p>
+ * The writer is opt-in.  Install it with DataSourceUpdateTracker.setUpdateWriter and queue updates with
+ * DataSourceUpdateTracker.queueUpdate.  Finishing a tracker always writes any pending update for that
+ * tracker first.  A pending update is only written while its tracker is still open, so an update which
+ * loses a race with a finish is discarded rather than reopening the tracker.
+ * <p>
+ * If a batch fails to write for a transient reason (e.g. a lock timeout or a lost connection) the whole
+ * batch is queued again.  Any other failure is isolated by writing the batch one update at a time.  Updates
+ * which still fail are queued again if the failure is transient and dropped otherwise, so one bad update
+ * never blocks the rest of the queue.
+ */
+public class TrackerUpdateWriter implements TrackerUpdateWriterMBean {
+  private static final Logger log = Logger.getLogger(TrackerUpdateWriter.class.getName());
+
+  // Maximum time (milliseconds) an update stays queued before it is written
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_WRITE_INTERVAL = "enterprises.orbital.tracker.writeBehindInterval";
+  @SuppressWarnings("WeakerAccess")
+  public static final long DEF_TRACKER_WRITE_INTERVAL = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+  // Number of pending trackers which triggers an early write
+  @SuppressWarnings("WeakerAccess")
+  public static final String PROP_TRACKER_WRITE_THRESHOLD = "enterprises.orbital.tracker.writeBehindThreshold";
+  @SuppressWarnings("WeakerAccess")
+  public static final int DEF_TRACKER_WRITE_THRESHOLD = 500;
+
+  private static final class Entry {
+    private final DataSourceUpdateTracker tracker;
+    // System.nanoTime() of the oldest update coalesced into this entry
+    private final long queued;
+
+    private Entry(DataSourceUpdateTracker tracker, long queued) {
+      this.tracker = tracker;
+      this.queued = queued;
+    }
+  }
+
+  private final long interval;
+  private final int threshold;
+  private final Map<Long, Entry> pending = new ConcurrentHashMap<>();
+  // Held while writing so that a forced flush for one tracker waits for any write already in progress
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  // Set by stop.  Updates submitted after stop are written immediately since no later flush is scheduled.
+  private volatile boolean stopped;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new DaemonThreadFactory("tracker-writer"));
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder flushFailures = new LongAdder();
+  private final LongAdder stale = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LatencyHistogram flushLag = new LatencyHistogram();
+
+  public TrackerUpdateWriter() {
+    this(OrbitalProperties.getLongGlobalProperty(PROP_TRACKER_WRITE_INTERVAL, DEF_TRACKER_WRITE_INTERVAL),
+         OrbitalProperties.getIntGlobalProperty(PROP_TRACKER_WRITE_THRESHOLD, DEF_TRACKER_WRITE_THRESHOLD));
+  }
+
+  public TrackerUpdateWriter(long interval, int threshold) {
+    this.interval = interval;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Start periodic writes and publish metrics over JMX.
+   */
+  public void start() {
+    executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    DataPlatformMetrics.register("TrackerUpdateWriter", this);
+  }
+
+  /**
+   * Stop periodic writes and write anything still pending.  If the writer is still installed, updates
+   * submitted afterwards are written synchronously.
+   */
+  public void stop() {
+    stopped = true;
+    executor.shutdownNow();
+    flush();
+  }
+
+  /**
+   * Queue an update.  A copy of the tracker is taken so the caller may continue to modify it.
+   *
+   * @param tracker the tracker to save.
+   */
+  void submit(DataSourceUpdateTracker tracker) {
+    Entry update = new Entry(tracker.copy(), System.nanoTime());
+    submitted.increment();
+    pending.merge(tracker.getTid(), update, (older, newer) -> {
+      coalesced.increment();
+      return new Entry(newer.tracker, older.queued);
+    });
+    if (stopped) {
+      // The final flush in stop may already have run, so write now
+      flush();
+      return;
+    }
+    if (pending.size() >= threshold && flushRequested.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::flush);
+      } catch (Exception e) {
+        // Writer was stopped after the check above.  This update was queued before stop set the flag, so
+        // the final flush in stop writes it.
+        flushRequested.set(false);
+      }
+    }
+  }
+
+  /**
+   * Write all pending updates in a single transaction.  Updates which fail to write for a transient reason
+   * are queued again unless a newer update for the same tracker has arrived in the meantime.
+   */
+  public void flush() {
+    flushRequested.set(false);
+    writeLock.lock();
+    try {
+      List<Entry> batch = new ArrayList<>(pending.size());
+      for (Long tid : pending.keySet()) {
+        Entry next = pending.remove(tid);
+        if (next != null) batch.add(next);
+      }
+      write(batch, true);
+    } catch (Throwable e) {
+      // Catch everything but log it so future flushes still run
+      log.log(Level.WARNING, "caught error writing tracker updates (ignoring)", e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Write any pending update for a single tracker.  When this method returns no write of an older state
+   * of this tracker is in progress.
+   *
+   * @param tid the ID of the tracker to flush.
+   */
+  void flush(long tid) {
+    writeLock.lock();
+    try {
+      Entry next = pending.remove(tid);
+      // Do not requeue on failure since the caller is about to overwrite this tracker.  The update counts
+      // as dropped.
+      if (next != null) write(Collections.singletonList(next), false);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void write(List<Entry> batch, boolean requeue) {
+    if (batch.isEmpty()) return;
+    flushes.increment();
+    try {
+      writeEntries(batch);
+      return;
+    } catch (Exception e) {
+      flushFailures.increment();
+      if (batch.size() == 1 || PersistenceErrors.isTransient(e)) {
+        failed(batch, requeue, e);
+        return;
+      }
+      log.log(Level.WARNING, "failed to write " + batch.size() + " tracker updates, retrying one at a time", e);
+    }
+    for (Entry next : batch) {
+      List<Entry> single = Collections.singletonList(next);
+      try {
+        writeEntries(single);
+      } catch (Exception e) {
+        failed(single, requeue, e);
+      }
+    }
+  }
+
+  private void writeEntries(List<Entry> entries) throws Exception {
+    List<DataSourceUpdateTracker> trackers = new ArrayList<>(entries.size());
+    for (Entry next : entries) trackers.add(next.tracker);
+    int count = DataSourceUpdateTracker.writeQueued(trackers)
+                                       .size();
+    long now = System.nanoTime();
+    written.add(count);
+    stale.add(entries.size() - count);
+    for (Entry next : entries) flushLag.record(now - next.queued);
+  }
+
+  // Queue failed updates again if the failure is transient, otherwise drop them
+  private void failed(List<Entry> entries, boolean requeue, Exception e) {
+    if (requeue && PersistenceErrors.isTransient(e)) {
+      log.log(Level.FINE, "transient failure writing tracker updates, queued again", e);
+      for (Entry next : entries) pending.putIfAbsent(next.tracker.getTid(), next);
+      return;
+    }
+    dropped.add(entries.size());
+    for (Entry next : entries)
+      log.log(Level.WARNING, "dropping update which failed to write: " + next.tracker, e);
+  }
+
+  @Override
+  public long getQueueDepth() {
+    return pending.size();
+  }
+
+  @Override
+  public long getSubmitted() {
+    return submitted.sum();
+  }
+
+  @Override
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  @Override
+  public long getWritten() {
+    return written.sum();
+  }
+
+  @Override
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  @Override
+  public long getFlushFailures() {
+    return flushFailures.sum();
+  }
+
+  @Override
+  public long getStale() {
+    return stale.sum();
+  }
+
+  @Override
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  @Override
+  public double getFlushLagMeanMillis() {
+    return flushLag.getMeanMillis();
+  }
+
+  @Override
+  public double getFlushLagP99Millis() {
+    return flushLag.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getFlushLagMaxMillis() {
+    return flushLag.getMaxMillis();
+  }
+
+}
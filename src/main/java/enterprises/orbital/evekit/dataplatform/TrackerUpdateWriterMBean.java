@@ -0,0 +1,32 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * JMX view of TrackerUpdateWriter.  Lag values measure the time from the first queued update of a
+ * tracker until that tracker was written.  Stale updates were skipped because their tracker had already
+ * finished or been deleted.  Dropped updates failed to write for a reason which retrying would not fix.
+ */
+public interface TrackerUpdateWriterMBean {
+
+  long getQueueDepth();
+
+  long getSubmitted();
+
+  long getCoalesced();
+
+  long getWritten();
+
+  long getFlushes();
+
+  long getFlushFailures();
+
+  long getStale();
+
+  long getDropped();
+
+  double getFlushLagMeanMillis();
+
+  double getFlushLagP99Millis();
+
+  double getFlushLagMaxMillis();
+
+}
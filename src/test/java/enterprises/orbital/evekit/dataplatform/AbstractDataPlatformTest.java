@@ -0,0 +1,57 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.junit.BeforeClass;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common setup for tests which use the in-memory test database.
+ */
+public abstract class AbstractDataPlatformTest {
+
+  @BeforeClass
+  public static void setUpProperties() {
+    OrbitalProperties.addPropertyFile("DataPlatformTest.properties");
+  }
+
+  // Create an enabled data source with the given name
+  static DataSource createSource(String name) {
+    DataSource source = DataSource.createSource();
+    source.setName(name);
+    source.setEnabled(true);
+    return DataSource.update(source);
+  }
+
+  // Run a task on the given number of threads, all released at once, and return each thread's result
+  static <A> List<A> runConcurrently(int threads, Callable<A> task) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch ready = new CountDownLatch(threads);
+      CountDownLatch go = new CountDownLatch(1);
+      List<Future<A>> futures = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        futures.add(pool.submit(() -> {
+          ready.countDown();
+          go.await();
+          return task.call();
+        }));
+      }
+      ready.await();
+      go.countDown();
+      List<A> results = new ArrayList<>(threads);
+      for (Future<A> next : futures) results.add(next.get(1, TimeUnit.MINUTES));
+      return results;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helpers for the benchmarks in this package.  Benchmarks are plain programs rather than tests so they never slow
+ * down the build.  Each runs against the in-memory test database, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=enterprises.orbital.evekit.dataplatform.ESITokenStateStoreBenchmark
+ * </pre>
+ * Absolute numbers from an in-memory database say little about production.  Compare paths within one run.
+ */
+final class Benchmarks {
+  // Default warmup and measurement periods for throughput runs
+  static final long WARMUP = 2000;
+  static final long MEASURE = 5000;
+
+  private Benchmarks() {}
+
+  // Point persistence at the in-memory test database
+  static void setUp() {
+    setUp("DataPlatformTest.properties");
+  }
+
+  // Point persistence at the persistence unit named in the given test properties file
+  static void setUp(String propertyFile) {
+    OrbitalProperties.addPropertyFile(propertyFile);
+  }
+
+  // Run a task on the given number of threads, first for a warmup period and then for a measured period.
+  // Returns completed tasks per second over the measured period.
+  static double throughput(int threads, long warmup, long measure, Callable<?> task) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    LongAdder completed = new LongAdder();
+    CountDownLatch go = new CountDownLatch(1);
+    try {
+      List<Future<?>> futures = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        futures.add(pool.submit(() -> {
+          go.await();
+          while (!Thread.currentThread()
+                       .isInterrupted()) {
+            task.call();
+            completed.increment();
+          }
+          return null;
+        }));
+      }
+      go.countDown();
+      Thread.sleep(warmup);
+      long before = completed.sum();
+      long start = System.nanoTime();
+      Thread.sleep(measure);
+      long after = completed.sum();
+      long elapsed = System.nanoTime() - start;
+      pool.shutdownNow();
+      // Surface any failure in the task
+      for (Future<?> next : futures) {
+        if (next.isDone() && !next.isCancelled()) next.get();
+      }
+      return (after - before) * 1e9 / elapsed;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // Time a task a number of times after the given number of untimed warmup calls
+  static LatencyHistogram latency(int warmup, int calls, Callable<?> task) throws Exception {
+    for (int i = 0; i < warmup; i++) task.call();
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < calls; i++) {
+      long start = System.nanoTime();
+      task.call();
+      histogram.record(System.nanoTime() - start);
+    }
+    return histogram;
+  }
+
+  static void report(String name, double perSecond) {
+    System.out.printf("%-60s %12.1f ops/s%n", name, perSecond);
+  }
+
+  static void report(String name, LatencyHistogram histogram) {
+    System.out.printf("%-60s mean %9.3f ms  p99 %9.3f ms  max %9.3f ms%n", name, histogram.getMeanMillis(),
+                      histogram.getPercentileMillis(99), histogram.getMaxMillis());
+  }
+
+}
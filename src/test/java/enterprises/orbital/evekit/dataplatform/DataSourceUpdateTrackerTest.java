@@ -0,0 +1,156 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DataSourceUpdateTrackerTest extends AbstractDataPlatformTest {
+  private static final int CALLERS = 16;
+  private static final long LEASE = 60000;
+
+  @Test
+  public void testConcurrentGetOrCreateUnfinishedCreatesOneTracker() throws Exception {
+    DataSource source = createSource("tracker-test-" + System.nanoTime());
+
+    List<DataSourceUpdateTracker> results = runConcurrently(
+        CALLERS, () -> DataSourceUpdateTracker.getOrCreateUnfinished(source, "type"));
+
+    long tid = results.get(0)
+                      .getTid();
+    for (DataSourceUpdateTracker next : results) {
+      assertNotNull(next);
+      assertEquals(tid, next.getTid());
+    }
+    assertEquals(1, DataSourceUpdateTracker.getAllUnfinishedTracker(source)
+                                           .size());
+  }
+
+  @Test
+  public void testLeaseClaimRenewAndRelease() {
+    DataSource source = createSource("lease-test-" + System.nanoTime());
+    DataSourceUpdateTracker tracker = DataSourceUpdateTracker.getOrCreateUnfinished(source, "type");
+
+    DataSourceUpdateTracker claimed = claim("node-a", source);
+    assertNotNull(claimed);
+    assertEquals(tracker.getTid(), claimed.getTid());
+    assertEquals("node-a", claimed.getLeaseOwner());
+    // A live lease can not be claimed or renewed by another node
+    assertNull(claim("node-b", source));
+    assertFalse(DataSourceUpdateTracker.renewLease(tracker.getTid(), "node-b", LEASE));
+    assertTrue(DataSourceUpdateTracker.renewLease(tracker.getTid(), "node-a", LEASE));
+
+    assertFalse(DataSourceUpdateTracker.releaseLease(tracker.getTid(), "node-b"));
+    assertTrue(DataSourceUpdateTracker.releaseLease(tracker.getTid(), "node-a"));
+    claimed = claim("node-b", source);
+    assertNotNull(claimed);
+    assertEquals("node-b", claimed.getLeaseOwner());
+  }
+
+  @Test
+  public void testExpiredLeaseIsClaimable() {
+    // Lease everything left by other tests first, since an expired lease on one of those would be claimed again
+    // and again below
+    assertNull(claim("node-z", null));
+    DataSource source = createSource("lease-test-" + System.nanoTime());
+    DataSourceUpdateTracker tracker = DataSourceUpdateTracker.getOrCreateUnfinished(source, "type");
+
+    // A lease which has already expired when it is taken
+    DataSourceUpdateTracker claimed = DataSourceUpdateTracker.claimNext("node-a", -1);
+    assertNotNull(claimed);
+    assertEquals(tracker.getTid(), claimed.getTid());
+    assertFalse(DataSourceUpdateTracker.renewLease(tracker.getTid(), "node-b", LEASE));
+
+    claimed = claim("node-b", source);
+    assertNotNull(claimed);
+    assertEquals(tracker.getTid(), claimed.getTid());
+    assertEquals("node-b", claimed.getLeaseOwner());
+    // The previous holder lost the lease
+    assertFalse(DataSourceUpdateTracker.renewLease(tracker.getTid(), "node-a", LEASE));
+  }
+
+  @Test
+  public void testFinishReleasesLease() {
+    DataSource source = createSource("lease-test-" + System.nanoTime());
+    DataSourceUpdateTracker tracker = DataSourceUpdateTracker.getOrCreateUnfinished(source, "type");
+    assertNotNull(claim("node-a", source));
+
+    assertNotNull(DataSourceUpdateTracker.finishTracker(tracker, DataSourceUpdateTracker.UpdateStatus.FINISHED, ""));
+
+    DataSourceUpdateTracker stored = DataSourceUpdateTracker.get(source, tracker.getTid());
+    assertNull(stored.getLeaseOwner());
+    assertEquals(-1, stored.getLeaseExpiry());
+    assertFalse(DataSourceUpdateTracker.renewLease(tracker.getTid(), "node-a", LEASE));
+    assertNull(claim("node-b", source));
+  }
+
+  @Test
+  public void testClaimsFollowDueTime() {
+    DataSource source = createSource("lease-test-" + System.nanoTime());
+    List<DataSourceUpdateTracker> trackers = DataSourceUpdateTracker.createTrackers(
+        source, Arrays.asList("first", "second", "third", "later"));
+    long now = OrbitalProperties.getCurrentTime();
+    // Due times run against creation order
+    setDueTime(trackers.get(0), now - 1000);
+    setDueTime(trackers.get(1), now - 2000);
+    setDueTime(trackers.get(2), now - 3000);
+    setDueTime(trackers.get(3), now + LEASE);
+
+    assertEquals("third", claim("node-a", source).getDataSourceType());
+    assertEquals("second", claim("node-a", source).getDataSourceType());
+    assertEquals("first", claim("node-a", source).getDataSourceType());
+    // Not due yet
+    assertNull(claim("node-a", source));
+  }
+
+  @Test
+  public void testConcurrentClaimsNeverShareATracker() throws Exception {
+    DataSource source = createSource("lease-test-" + System.nanoTime());
+    List<String> types = new ArrayList<>();
+    for (int i = 0; i < CALLERS * 2; i++) types.add("type-" + i);
+    Set<Long> expected = new HashSet<>();
+    for (DataSourceUpdateTracker next : DataSourceUpdateTracker.createTrackers(source, types)) expected.add(next.getTid());
+
+    List<List<Long>> claims = runConcurrently(CALLERS, () -> {
+      List<Long> mine = new ArrayList<>();
+      String owner = Thread.currentThread()
+                           .getName();
+      for (DataSourceUpdateTracker next = claim(owner, source); next != null; next = claim(owner, source))
+        mine.add(next.getTid());
+      return mine;
+    });
+
+    Set<Long> claimed = new HashSet<>();
+    for (List<Long> next : claims) {
+      for (Long tid : next) assertTrue("claimed twice: " + tid, claimed.add(tid));
+    }
+    assertEquals(expected, claimed);
+  }
+
+  // Claim the next tracker of the given source, or of no source to claim everything.  Open trackers left by
+  // other tests share the database, so claims of those are skipped.
+  private static DataSourceUpdateTracker claim(String owner, DataSource source) {
+    for (DataSourceUpdateTracker next = DataSourceUpdateTracker.claimNext(owner, LEASE); next != null;
+         next = DataSourceUpdateTracker.claimNext(owner, LEASE)) {
+      if (source != null && next.getSource()
+                                .getSid() == source.getSid()) return next;
+    }
+    return null;
+  }
+
+  private static void setDueTime(DataSourceUpdateTracker tracker, long dueTime) {
+    tracker.setDueTime(dueTime);
+    assertNotNull(DataSourceUpdateTracker.updateTracker(tracker));
+  }
+
+}
@@ -0,0 +1,84 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.oauth.EVEAuthHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ESITokenManagerTest extends AbstractDataPlatformTest {
+  private static final int CALLERS = 16;
+  // Long enough that every caller arrives while the refresh is still in flight
+  private static final long SSO_DELAY = 500;
+
+  private final AtomicInteger ssoCalls = new AtomicInteger();
+  private ESIToken key;
+
+  @Before
+  public void setUp() {
+    DataPlatformUserAccount user = DataPlatformUserAccount.createNewUserAccount(false);
+    key = ESIToken.createKey(user, "esi-skills.read_skills.v1", "test character");
+    assertNotNull(key);
+    key.setAccessToken("expired");
+    key.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() - 1);
+    key.setRefreshToken("refresh-0");
+    key = ESIToken.update(key);
+    assertNotNull(key);
+  }
+
+  @After
+  public void tearDown() {
+    ESITokenManager.setTokenRefresher(EVEAuthHandler::doRefresh);
+  }
+
+  @Test
+  public void testConcurrentRefreshMakesOneSSOCall() throws Exception {
+    ESITokenManager.setTokenRefresher((id, secret, refreshToken) -> {
+      int call = ssoCalls.incrementAndGet();
+      Thread.sleep(SSO_DELAY);
+      return new OAuth2AccessToken("access-" + call, "Bearer", 1200, "refresh-" + call, null, "{}");
+    });
+
+    List<String> tokens = runConcurrently(CALLERS, () -> ESITokenManager.refreshToken(key.getKid(), 60000, "id", "secret"));
+
+    assertEquals(1, ssoCalls.get());
+    for (String next : tokens) assertEquals("access-1", next);
+    // Only the single rotated refresh token is stored
+    assertEquals("refresh-1", ESIToken.getKeyByID(key.getKid())
+                                      .getRefreshToken());
+  }
+
+  @Test
+  public void testConcurrentRefreshSharesFailure() throws Exception {
+    ESITokenManager.setTokenRefresher((id, secret, refreshToken) -> {
+      ssoCalls.incrementAndGet();
+      Thread.sleep(SSO_DELAY);
+      throw new IOException("SSO unavailable");
+    });
+
+    List<Boolean> failed = runConcurrently(CALLERS, () -> {
+      try {
+        ESITokenManager.refreshToken(key.getKid(), 60000, "id", "secret");
+        return false;
+      } catch (IOException e) {
+        return true;
+      }
+    });
+
+    assertEquals(1, ssoCalls.get());
+    for (Boolean next : failed) assertTrue(next);
+    // Refresh token is kept so the refresh can be retried
+    assertEquals("refresh-0", ESIToken.getKeyByID(key.getKid())
+                                      .getRefreshToken());
+  }
+
+}
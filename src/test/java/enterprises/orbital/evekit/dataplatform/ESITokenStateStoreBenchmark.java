@@ -0,0 +1,33 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Compares login flow throughput of the pending request stores.  Each iteration is one login: create a pending
+ * request when the user is sent to SSO, then take it back when the callback arrives.
+ */
+public class ESITokenStateStoreBenchmark {
+  private static final String SCOPES = "esi-skills.read_skills.v1 esi-wallet.read_character_wallet.v1";
+  private static final int[] THREADS = {1, 8};
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp();
+    DataPlatformUserAccount user = DataPlatformUserAccount.createNewUserAccount(false);
+    run("db", new ESITokenDBStateStore(), user);
+    run("memory", new ESITokenMemoryStateStore(), user);
+  }
+
+  private static void run(String name, ESITokenStateStore store, DataPlatformUserAccount user) throws Exception {
+    for (int threads : THREADS) {
+      double rate = Benchmarks.throughput(threads, Benchmarks.WARMUP, Benchmarks.MEASURE, () -> {
+        long now = OrbitalProperties.getCurrentTime();
+        NewESIToken pending = store.create(user, now, now + 600000, SCOPES, -1);
+        if (pending == null || store.take(pending.getStateKey()) == null)
+          throw new IllegalStateException("login flow failed");
+        return null;
+      });
+      Benchmarks.report("login flow, " + name + " store, " + threads + " threads", rate);
+    }
+  }
+
+}
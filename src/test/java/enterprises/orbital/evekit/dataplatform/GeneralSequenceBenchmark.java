@@ -0,0 +1,28 @@
+package enterprises.orbital.evekit.dataplatform;
+
+/**
+ * Compares values per second handed out by GeneralSequenceAllocator.next with GeneralSequenceNumber.create, which
+ * costs a transaction and an insert per value, at 1, 8 and 32 threads.
+ */
+public class GeneralSequenceBenchmark {
+  private static final int[] THREADS = {1, 8, 32};
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp();
+    GeneralSequenceAllocator allocator = new GeneralSequenceAllocator();
+    try {
+      for (int threads : THREADS) {
+        Benchmarks.report("GeneralSequenceNumber.create, " + threads + " threads",
+                          Benchmarks.throughput(threads, Benchmarks.WARMUP, Benchmarks.MEASURE,
+                                                GeneralSequenceNumber::create));
+        Benchmarks.report("GeneralSequenceAllocator.next, " + threads + " threads",
+                          Benchmarks.throughput(threads, Benchmarks.WARMUP, Benchmarks.MEASURE, allocator::next));
+      }
+      System.out.printf("allocator issued %d, reserved %d, waited %d times, %d failed reservations%n",
+                        allocator.getIssued(), allocator.getReserved(), allocator.getWaits(), allocator.getFailures());
+    } finally {
+      allocator.stop();
+    }
+  }
+
+}
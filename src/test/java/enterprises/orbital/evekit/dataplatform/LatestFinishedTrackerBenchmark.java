@@ -0,0 +1,82 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import javax.persistence.NoResultException;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares ways of reading the latest finished tracker of every type of a source: one query per type (the
+ * original getAllLatestFinishedTrackers), the single grouped query, and the public call.
+ */
+public class LatestFinishedTrackerBenchmark {
+  private static final int TYPES = 200;
+  private static final int TRACKERS_PER_TYPE = 20;
+  private static final int WARMUP = 20;
+  private static final int CALLS = 200;
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp();
+    DataSource source = seed();
+    Benchmarks.report("one query per type (" + TYPES + " types)",
+                      Benchmarks.latency(WARMUP, CALLS, () -> perType(source)));
+    Benchmarks.report("grouped query", Benchmarks.latency(WARMUP, CALLS, () -> grouped(source)));
+    Benchmarks.report("getAllLatestFinishedTrackers",
+                      Benchmarks.latency(WARMUP, CALLS, () -> DataSourceUpdateTracker.getAllLatestFinishedTrackers(source)));
+  }
+
+  // Create TRACKERS_PER_TYPE finished trackers for each of TYPES types
+  private static DataSource seed() {
+    DataSource source = DataSource.createSource();
+    source.setName("latest-benchmark");
+    source = DataSource.update(source);
+    List<String> types = new ArrayList<>(TYPES);
+    for (int i = 0; i < TYPES; i++) types.add("type-" + i);
+    for (int round = 0; round < TRACKERS_PER_TYPE; round++) {
+      Map<Long, DataSourceUpdateTracker.UpdateStatus> statuses = new HashMap<>();
+      for (DataSourceUpdateTracker next : DataSourceUpdateTracker.createTrackers(source, types))
+        statuses.put(next.getTid(), DataSourceUpdateTracker.UpdateStatus.FINISHED);
+      DataSourceUpdateTracker.finishTrackers(statuses);
+    }
+    return source;
+  }
+
+  private static List<DataSourceUpdateTracker> perType(DataSource source) throws Exception {
+    List<String> types = DataPlatformProvider.getFactory().runTransaction(() -> {
+      return DataPlatformProvider.getFactory().getEntityManager()
+                                 .createNamedQuery("DataSourceUpdateTracker.getAllTypes", String.class)
+                                 .setParameter("source", source)
+                                 .getResultList();
+    });
+    List<DataSourceUpdateTracker> results = new ArrayList<>(types.size());
+    for (String dtype : types) {
+      DataSourceUpdateTracker latest = DataPlatformProvider.getFactory().runTransaction(() -> {
+        TypedQuery<DataSourceUpdateTracker> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(
+            "DataSourceUpdateTracker.getLatestFinished", DataSourceUpdateTracker.class);
+        getter.setParameter("source", source);
+        getter.setParameter("dtype", dtype);
+        getter.setMaxResults(1);
+        try {
+          return getter.getSingleResult();
+        } catch (NoResultException e) {
+          return null;
+        }
+      });
+      if (latest != null) results.add(latest);
+    }
+    return results;
+  }
+
+  private static List<DataSourceUpdateTracker> grouped(DataSource source) throws Exception {
+    return DataPlatformProvider.getFactory().runTransaction(() -> {
+      return DataPlatformProvider.getFactory().getEntityManager()
+                                 .createNamedQuery("DataSourceUpdateTracker.getAllLatestFinished",
+                                                   DataSourceUpdateTracker.class)
+                                 .setParameter("source", source)
+                                 .getResultList();
+    });
+  }
+
+}
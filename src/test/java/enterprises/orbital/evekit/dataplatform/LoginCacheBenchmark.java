@@ -0,0 +1,96 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.hibernate.SessionFactory;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Measures the login path (source lookup by screen name, account lookup by uid and sign on update) against the
+ * cache enabled test persistence unit.  Compares a cold cache (all regions evicted before each sign on), a warm
+ * cache with sign on writes throttled by PROP_SIGN_ON_INTERVAL, and a warm cache which writes every sign on.  Each
+ * write invalidates the cached login queries, which the last case shows.
+ */
+public class LoginCacheBenchmark {
+  private static final int ACCOUNTS = 500;
+  private static final int WARMUP = 2000;
+  private static final int CALLS = 10000;
+  private static final String SOURCE = "benchmark";
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp("DataPlatformCacheTest.properties");
+    seed();
+    Benchmarks.report("cold cache", cold());
+    Benchmarks.report("warm cache, throttled sign on writes",
+                      Benchmarks.latency(WARMUP, CALLS, new SignOn(false)));
+    Benchmarks.report("warm cache, write every sign on",
+                      Benchmarks.latency(WARMUP, CALLS, new SignOn(true)));
+  }
+
+  private static void seed() {
+    for (int i = 0; i < ACCOUNTS; i++) {
+      DataPlatformUserAccount account = DataPlatformUserAccount.createNewUserAccount(false);
+      DataPlatformUserAuthSource.createSource(account, SOURCE, "pilot-" + i, "details");
+    }
+  }
+
+  // Time sign ons with every cache region evicted first.  Eviction is not timed.
+  private static LatencyHistogram cold() throws Exception {
+    SignOn signOn = new SignOn(false);
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < CALLS / 10; i++) {
+      evict();
+      long start = System.nanoTime();
+      signOn.call();
+      histogram.record(System.nanoTime() - start);
+    }
+    return histogram;
+  }
+
+  private static void evict() throws Exception {
+    DataPlatformProvider.getFactory()
+                        .runTransaction(() -> {
+                          DataPlatformProvider.getFactory()
+                                              .getEntityManager()
+                                              .getEntityManagerFactory()
+                                              .unwrap(SessionFactory.class)
+                                              .getCache()
+                                              .evictAllRegions();
+                        });
+  }
+
+  // Sign on each account in turn.  If "always" is set, sign on times are written unconditionally as touch
+  // did before it was throttled.
+  private static final class SignOn implements Callable<Object> {
+    private final boolean always;
+    private int next;
+
+    private SignOn(boolean always) {
+      this.always = always;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      DataPlatformUserAuthSource source = DataPlatformUserAuthSource.getBySourceScreenname(
+          SOURCE, "pilot-" + (next++ % ACCOUNTS));
+      DataPlatformUserAccount account = DataPlatformUserAccount.getAccount(source.getUserAccount()
+                                                                                 .getID());
+      if (!always) {
+        DataPlatformUserAuthSource.touch(source);
+        return DataPlatformUserAccount.touch(account);
+      }
+      return DataPlatformProvider.getFactory()
+                                 .runTransaction(() -> {
+                                   long now = OrbitalProperties.getCurrentTime();
+                                   DataPlatformUserAuthSource managedSource = DataPlatformUserAuthSource.getSource(
+                                       account, SOURCE);
+                                   managedSource.setLast(now);
+                                   DataPlatformUserAccount managedAccount = DataPlatformUserAccount.getAccount(
+                                       account.getID());
+                                   managedAccount.setLast(now);
+                                   return managedAccount;
+                                 });
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares tracker lifecycle throughput of the per-tracker calls against the batch calls at several batch sizes.
+ * Each cycle creates, starts and finishes one tracker per type.  The per-tracker calls commit three times per
+ * tracker, the batch calls three times per batch.
+ */
+public class TrackerBatchBenchmark {
+  private static final int[] BATCH_SIZES = {1, 10, 100};
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp();
+    DataSource source = DataSource.createSource();
+    source.setName("batch-benchmark");
+    final DataSource owner = DataSource.update(source);
+    for (int size : BATCH_SIZES) {
+      List<String> types = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) types.add("type-" + i);
+      report("per-tracker calls, " + size + " types", size, size * 3,
+             Benchmarks.throughput(1, Benchmarks.WARMUP, Benchmarks.MEASURE, () -> {
+               for (String dtype : types) {
+                 DataSourceUpdateTracker tracker = DataSourceUpdateTracker.createTracker(owner, dtype);
+                 tracker.setTrackerStart(OrbitalProperties.getCurrentTime());
+                 tracker = DataSourceUpdateTracker.updateTracker(tracker);
+                 DataSourceUpdateTracker.finishTracker(tracker, DataSourceUpdateTracker.UpdateStatus.FINISHED, "");
+               }
+               return null;
+             }));
+      report("batch calls, batch size " + size, size, 3,
+             Benchmarks.throughput(1, Benchmarks.WARMUP, Benchmarks.MEASURE, () -> {
+               List<Long> tids = new ArrayList<>(size);
+               for (DataSourceUpdateTracker next : DataSourceUpdateTracker.createTrackers(owner, types))
+                 tids.add(next.getTid());
+               DataSourceUpdateTracker.startTrackers(tids);
+               Map<Long, DataSourceUpdateTracker.UpdateStatus> statuses = new HashMap<>();
+               for (Long tid : tids) statuses.put(tid, DataSourceUpdateTracker.UpdateStatus.FINISHED);
+               DataSourceUpdateTracker.finishTrackers(statuses);
+               return null;
+             }));
+    }
+  }
+
+  // Report a cycle rate as trackers and commits per second
+  private static void report(String name, int trackers, int commits, double cycles) {
+    Benchmarks.report(name + ", trackers", cycles * trackers);
+    Benchmarks.report(name + ", commits", cycles * commits);
+  }
+
+}
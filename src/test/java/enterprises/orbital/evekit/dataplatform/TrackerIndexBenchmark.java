@@ -0,0 +1,118 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import org.hibernate.Session;
+
+import javax.persistence.TypedQuery;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Times the source oriented tracker queries with and without the indexes which serve them (sourceTypeEndIndex
+ * and sourceEndIndex).  History is seeded with plain JDBC batches since going through the entity manager would
+ * take far longer than the queries being timed.  Pass the number of trackers to seed as the first argument.
+ * <p>
+ * Without the indexes getAllLatestFinished runs a correlated subquery per row, so expect the unindexed pass to
+ * take minutes at the default size.  A million trackers in the in-memory database needs a few GB of heap, e.g.
+ * MAVEN_OPTS=-Xmx4g.
+ */
+public class TrackerIndexBenchmark {
+  private static final int DEF_TRACKERS = 1000000;
+  private static final int SOURCES = 100;
+  private static final int TYPES = 100;
+  private static final int INSERT_BATCH = 10000;
+  // IDs well above anything handed out by the sequence
+  private static final long FIRST_TID = 1000000000L;
+  private static final String[][] INDEXES = {
+      {"sourceTypeEndIndex", "sid, dataSourceType, trackerEnd"},
+      {"sourceEndIndex", "sid, trackerEnd"}
+  };
+
+  public static void main(String[] argv) throws Exception {
+    Benchmarks.setUp();
+    int trackers = argv.length > 0 ? Integer.parseInt(argv[0]) : DEF_TRACKERS;
+    List<DataSource> sources = new ArrayList<>(SOURCES);
+    for (int i = 0; i < SOURCES; i++) {
+      DataSource source = DataSource.createSource();
+      source.setName("index-benchmark-" + i);
+      sources.add(DataSource.update(source));
+    }
+    seed(sources, trackers);
+    DataSource source = sources.get(0);
+    run("indexed", source, 5, 50);
+    for (String[] next : INDEXES) execute("DROP INDEX " + next[0]);
+    run("unindexed", source, 1, 3);
+    for (String[] next : INDEXES) execute("CREATE INDEX " + next[0] + " ON evekit_dp_tracker (" + next[1] + ")");
+  }
+
+  // Spread finished trackers evenly over every source and type, then open one tracker per source and type
+  private static void seed(List<DataSource> sources, int trackers) throws Exception {
+    int open = sources.size() * TYPES;
+    for (int start = 0; start < trackers + open; start += INSERT_BATCH) {
+      final int first = start;
+      final int last = Math.min(start + INSERT_BATCH, trackers + open);
+      DataPlatformProvider.getFactory().runTransaction(() -> {
+        DataPlatformProvider.getFactory().getEntityManager().unwrap(Session.class).doWork(connection -> {
+          try (PreparedStatement insert = connection.prepareStatement(
+              "INSERT INTO evekit_dp_tracker (tid, sid, trackerStart, trackerEnd, dataSourceType, trackerStatus, " +
+                  "trackerDetail, openGuard, leaseOwner, leaseExpiry, dueTime) VALUES (?, ?, ?, ?, ?, ?, ?, ?, NULL, -1, ?)")) {
+            for (int i = first; i < last; i++) {
+              long sid = sources.get(i % sources.size()).getSid();
+              String dtype = "type-" + (i / sources.size()) % TYPES;
+              boolean finished = i < trackers;
+              insert.setLong(1, FIRST_TID + i);
+              insert.setLong(2, sid);
+              insert.setLong(3, i * 1000L);
+              insert.setLong(4, finished ? i * 1000L + 500 : -1);
+              insert.setString(5, dtype);
+              insert.setInt(6, (finished ? DataSourceUpdateTracker.UpdateStatus.FINISHED :
+                  DataSourceUpdateTracker.UpdateStatus.NOT_STARTED).ordinal());
+              insert.setString(7, "");
+              insert.setString(8, finished ? null : sid + ":" + dtype);
+              insert.setLong(9, i * 1000L);
+              insert.addBatch();
+            }
+            insert.executeBatch();
+          }
+        });
+      });
+    }
+  }
+
+  private static void execute(String sql) throws Exception {
+    DataPlatformProvider.getFactory().runTransaction(() -> {
+      DataPlatformProvider.getFactory().getEntityManager().unwrap(Session.class).doWork(connection -> {
+        try (Statement statement = connection.createStatement()) {
+          statement.execute(sql);
+        }
+      });
+    });
+  }
+
+  private static void run(String pass, DataSource source, int warmup, int calls) throws Exception {
+    Map<String, Callable<?>> queries = new LinkedHashMap<>();
+    queries.put("getUnfinished", () -> query("DataSourceUpdateTracker.getUnfinished", source, "type-1", 0));
+    queries.put("getAllUnfinished", () -> query("DataSourceUpdateTracker.getAllUnfinished", source, null, 0));
+    queries.put("getLatestFinished", () -> query("DataSourceUpdateTracker.getLatestFinished", source, "type-1", 1));
+    queries.put("getAllLatestFinished", () -> query("DataSourceUpdateTracker.getAllLatestFinished", source, null, 0));
+    queries.put("getAllTypes", () -> query("DataSourceUpdateTracker.getAllTypes", source, null, 0));
+    queries.put("getFinishedTypes", () -> query("DataSourceUpdateTracker.getFinishedTypes", source, null, 0));
+    for (Map.Entry<String, Callable<?>> next : queries.entrySet())
+      Benchmarks.report(next.getKey() + ", " + pass, Benchmarks.latency(warmup, calls, next.getValue()));
+  }
+
+  private static List<?> query(String name, DataSource source, String dtype, int maxResults) throws Exception {
+    return DataPlatformProvider.getFactory().runTransaction(() -> {
+      TypedQuery<Object> getter = DataPlatformProvider.getFactory().getEntityManager().createNamedQuery(name, Object.class);
+      getter.setParameter("source", source);
+      if (dtype != null) getter.setParameter("dtype", dtype);
+      if (maxResults > 0) getter.setMaxResults(maxResults);
+      return getter.getResultList();
+    });
+  }
+
+}
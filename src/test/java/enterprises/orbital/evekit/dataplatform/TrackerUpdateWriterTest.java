@@ -0,0 +1,112 @@
+package enterprises.orbital.evekit.dataplatform;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TrackerUpdateWriterTest extends AbstractDataPlatformTest {
+  private static final int UPDATES = 100;
+
+  private TrackerUpdateWriter writer;
+  private DataSource source;
+  private DataSourceUpdateTracker tracker;
+
+  @Before
+  public void setUp() {
+    // Never flush on a timer or threshold so the test controls every write
+    writer = new TrackerUpdateWriter(Long.MAX_VALUE, Integer.MAX_VALUE);
+    DataSourceUpdateTracker.setUpdateWriter(writer);
+    source = createSource("writer-test-" + System.nanoTime());
+    tracker = DataSourceUpdateTracker.getOrCreateUnfinished(source, "type");
+    assertNotNull(tracker);
+  }
+
+  @After
+  public void tearDown() {
+    DataSourceUpdateTracker.setUpdateWriter(null);
+    writer.stop();
+  }
+
+  @Test
+  public void testUpdatesCoalesceToNewestState() {
+    tracker.setTrackerStart(OrbitalProperties.getCurrentTime());
+    for (int i = 0; i < UPDATES; i++) {
+      tracker.setTrackerDetail("progress-" + i);
+      DataSourceUpdateTracker.queueUpdate(tracker);
+    }
+
+    assertEquals(UPDATES, writer.getSubmitted());
+    assertEquals(UPDATES - 1, writer.getCoalesced());
+    assertEquals(1, writer.getQueueDepth());
+    // Nothing is written until the writer flushes
+    assertNull(DataSourceUpdateTracker.get(source, tracker.getTid())
+                                      .getTrackerDetail());
+
+    writer.flush();
+
+    assertEquals(0, writer.getQueueDepth());
+    assertEquals(1, writer.getFlushes());
+    assertEquals(1, writer.getWritten());
+    DataSourceUpdateTracker stored = DataSourceUpdateTracker.get(source, tracker.getTid());
+    assertEquals("progress-" + (UPDATES - 1), stored.getTrackerDetail());
+    assertEquals(tracker.getTrackerStart(), stored.getTrackerStart());
+  }
+
+  @Test
+  public void testFinishWritesQueuedUpdateFirst() {
+    tracker.setTrackerStart(OrbitalProperties.getCurrentTime());
+    tracker.setTrackerDetail("progress");
+    DataSourceUpdateTracker.queueUpdate(tracker);
+
+    DataSourceUpdateTracker finished = DataSourceUpdateTracker.finishTracker(
+        tracker, DataSourceUpdateTracker.UpdateStatus.FINISHED, "done");
+
+    assertNotNull(finished);
+    assertEquals(0, writer.getQueueDepth());
+    assertEquals(1, writer.getWritten());
+    // The queued update must not land after the finish
+    writer.flush();
+    DataSourceUpdateTracker stored = DataSourceUpdateTracker.get(source, tracker.getTid());
+    assertNotEquals(-1, stored.getTrackerEnd());
+    assertEquals("done", stored.getTrackerDetail());
+  }
+
+  @Test
+  public void testStaleUpdateDoesNotReopenTracker() {
+    DataSourceUpdateTracker late = tracker.copy();
+    late.setTrackerDetail("late progress");
+    assertNotNull(DataSourceUpdateTracker.finishTracker(tracker, DataSourceUpdateTracker.UpdateStatus.FINISHED, "done"));
+
+    // Simulate a copy queued before the finish which is only written afterwards
+    writer.submit(late);
+    writer.flush();
+
+    assertEquals(1, writer.getStale());
+    assertEquals(0, writer.getWritten());
+    assertEquals(0, writer.getDropped());
+    DataSourceUpdateTracker stored = DataSourceUpdateTracker.get(source, tracker.getTid());
+    assertNotEquals(-1, stored.getTrackerEnd());
+    assertEquals("done", stored.getTrackerDetail());
+    assertNull(DataSourceUpdateTracker.getUnfinishedTracker(source, "type"));
+  }
+
+  @Test
+  public void testUpdateAfterStopIsWritten() {
+    writer.stop();
+    tracker.setTrackerDetail("after stop");
+    DataSourceUpdateTracker.queueUpdate(tracker);
+
+    // No flush will follow, so the update must already be written
+    assertEquals(0, writer.getQueueDepth());
+    assertEquals(1, writer.getWritten());
+    assertEquals("after stop", DataSourceUpdateTracker.get(source, tracker.getTid())
+                                                      .getTrackerDetail());
+  }
+
+}